@@ -16,48 +16,94 @@
 package org.sfj;
 
 import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.AbstractMap;
 import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
 import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.stream.StreamSupport;
 import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import static java.nio.file.StandardOpenOption.CREATE;
 import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
 import static java.nio.file.StandardOpenOption.WRITE;
 
 /**
  * <p>Dead simple persistent ordered map. It is thread safe, via coarse synchronization
  * on writes. Reads are unsynchronized, though the underlying FileChannel is shared.
  * Deletes do not reclaim file space; they simply stop referencing the
- * block. Writes are CRC checked on restart, file is truncated to match the valid
- * length.
+ * block, until the log is compacted. Writes are CRC checked on restart, file is
+ * truncated to match the valid length.
  *
  * <p>This class is useful for prototyping when you need a persistent store and don't
  * want to bother much. You provide a file, and optionally an encoder and decoder, and
  * you can shove Objects in a sorted map structure that will serve get()s from disk,
  * and save mutations to disk. Basically, every change is written to a log, with crc.
- * Old entries are just left there; no garbage collection is done. So it is not
- * useful for massive stores, or fast changing ones, but for prototyping it's quite useful.
+ * Old entries are just left there until compact() is called (or auto compaction
+ * kicks in), which copies the live records to a new file and swaps it in place. So
+ * it is not useful for massive stores, but for prototyping it's quite useful.
  *
  * <p>Null values are not allowed. An in-memory sorted list keeps keys/disk addresses
  * for lookup. On restart, the entire log file is traversed, rebuilding the in memory
- * picture of keys to locations.
+ * picture of keys to locations -- unless a checkpoint of the key index exists, in
+ * which case only the log written after the checkpoint is traversed.
  *
  * <p>The core methods are ioGet(), ioSet(), and ioUnset(); these throw IOExceptions
  * on ... IO exceptions. The Map methods wrap these methods and throw
@@ -68,8 +114,59 @@ public class ChiseledMap<K, V> extends AbstractMap<K, V> implements ConcurrentMa
 
   public static final int DIGEST_MASK = 0x7fffffff;
 
+  /**
+   * The length word of a record carries flags in its top bits, so a single
+   * record is limited to LEN_MASK bytes (256MB).
+   */
+  public static final int LEN_MASK = 0x0fffffff;
+  private static final int FLAG_BATCH = 0x10000000;
+  private static final int FLAG_DEFLATE = 0x20000000;
+  private static final int FLAG_TTL = 0x40000000;
+  private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(Deflater::new);
+  private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+  /**
+   * Size of each memory mapped window over the log, in mmap mode.
+   */
+  public static final long MAP_WINDOW = 1L << 30;
+  private static final long MAP_MIN_GROWTH = 1024 * 1024;
+  private static final long MAP_MAX_GROWTH = 64 * 1024 * 1024;
+
+  /**
+   * Range scans read this many records at a time, in file order.
+   */
+  public static final int SCAN_CHUNK = 512;
+
+  /**
+   * On open, records are crc checked and decoded in parallel, this many to
+   * a task.
+   */
+  public static final int REBUILD_CHUNK = 1024;
+  private static final int SCAN_BUFFER = 64 * 1024;
+
+  /**
+   * The value cache is split this many ways by address, each part with its own
+   * lock.
+   */
+  public static final int CACHE_STRIPES = 16;
+
+  /**
+   * putAll() commits a batch each time this many bytes are buffered, so a
+   * bulk load never needs one record, or one buffer, the size of the whole map.
+   */
+  public static final int PUT_ALL_CHUNK = 4 * 1024 * 1024;
+
+  /**
+   * Header of files from before the log epoch. The current header is the same
+   * length, so record addresses are the same in either.
+   */
   public static final byte[] HDR = "(-:AnonymousBC:ChiseledMap-)".getBytes(StandardCharsets.US_ASCII);
 
+  /**
+   * Current header: this, then the 8 byte log epoch.
+   */
+  private static final byte[] MAGIC = "(-:ChiseledMap-v2-:)".getBytes(StandardCharsets.US_ASCII);
+
   /**
    * Open methods.
    */
@@ -77,6 +174,24 @@ public class ChiseledMap<K, V> extends AbstractMap<K, V> implements ConcurrentMa
     MUST_BE_NEW, MUST_EXIST, DONT_CARE
   }
 
+  /**
+   * Durability policies for writes.
+   */
+  public enum Durability {
+    /**
+     * Writes reach the disk when the write buffer fills, or on flush().
+     */
+    NONE,
+    /**
+     * A background thread does a flush() every so many milliseconds.
+     */
+    PERIODIC,
+    /**
+     * Writes return once fsync'd. Concurrent writers share a single force().
+     */
+    GROUP_COMMIT
+  }
+
   /**
    * For the map methods, IOExceptions are wrapped in this.
    */
@@ -86,6 +201,16 @@ public class ChiseledMap<K, V> extends AbstractMap<K, V> implements ConcurrentMa
     }
   }
 
+  /**
+   * Log shipping between logs of different epochs; the addresses mean
+   * different things on either side. The follower has to start over.
+   */
+  public static class LogEpochException extends IOException {
+    public LogEpochException(String message) {
+      super(message);
+    }
+  }
+
   /**
    * Encode a key/value (here you must handle null values) into a ByteBuffer.
    * @param <KK> key type
@@ -106,20 +231,48 @@ public class ChiseledMap<K, V> extends AbstractMap<K, V> implements ConcurrentMa
     Entry<KK, VV> decode(byte[] bArray) throws IOException;
   }
 
-  private final CRC32 digest;
+  private static final ThreadLocal<CRC32> DIGEST = ThreadLocal.withInitial(CRC32::new);
   private final Comparator<K> comp;
-  private final FileChannel fc;
+  private volatile FileChannel fc;
   private final ConcurrentSkipListMap<K, Long> map;
-  private final ByteBuffer lenBuffer = ByteBuffer.allocate(4);
-  private final ByteBuffer digestBuffer = ByteBuffer.allocate(4);
+  private final ConcurrentSkipListMap<K, Long> expiries;
+  private final ConcurrentSkipListSet<Expiring<K>> timeline;
+  private final StampedLock swapLock = new StampedLock();
+  private final StampedLock bufferLock = new StampedLock();
+  private final AtomicBoolean compacting = new AtomicBoolean(false);
   private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(1024 * 1024);
   private final File file;
-  private long currentWritePos = HDR.length;
-  private long nextWritePos = HDR.length;
-  private volatile int pendingWrites = 0;
+  private volatile long currentWritePos = HDR.length;
+  private volatile long nextWritePos = HDR.length;
   private final Encoder<K, V> encoder;
   private final Decoder<K, V> decoder;
   private long entriesOnDisk = 0;
+  private double autoCompactRatio = 0.0d;
+  private long autoCompactMinEntries = 0;
+  private final Object checkpointLock = new Object();
+  private final AtomicBoolean checkpointing = new AtomicBoolean(false);
+  private volatile long generation = 0;
+  private final Object windowsLock = new Object();
+  private volatile MappedByteBuffer[] windows = null;
+  private long remaps = 0;
+  private volatile Durability durability = Durability.NONE;
+  private volatile long durablePos = HDR.length;
+  private volatile long epoch;
+  private final Object durableLock = new Object();
+  private final Object forceLock = new Object();
+  private ScheduledExecutorService syncer = null;
+  private ScheduledExecutorService expirer = null;
+  private final Object feedLock = new Object();
+  private volatile int tailing = 0;
+  private volatile boolean follower = false;
+  private final List<SecondaryIndex<?>> indexes = new CopyOnWriteArrayList<>();
+  private final List<Snapshot> views = new CopyOnWriteArrayList<>();
+  private volatile ValueCache valueCache = null;
+  private volatile int compressThreshold = 0;
+  private volatile int compressLevel = Deflater.DEFAULT_COMPRESSION;
+  private long checkpointEvery = 0;
+  private long appendsSinceCheckpoint = 0;
+  private int putAllChunk = PUT_ALL_CHUNK;
 
   /**
    * Default java serialization. Good enough.
@@ -151,6 +304,147 @@ public class ChiseledMap<K, V> extends AbstractMap<K, V> implements ConcurrentMa
     }
   };
 
+  /**
+   * Compact binary form of one type, for binaryEncoder()/binaryDecoder(). No
+   * class descriptors, no object streams; just the bytes.
+   * @param <T> type
+   */
+  public interface Codec<T> {
+    void put(ByteBuffer b, T t);
+
+    T get(ByteBuffer b);
+
+    Codec<Long> LONG = new Codec<Long>() {
+      @Override
+      public void put(ByteBuffer b, Long t) {
+        b.putLong(t);
+      }
+
+      @Override
+      public Long get(ByteBuffer b) {
+        return b.getLong();
+      }
+    };
+
+    Codec<Integer> INT = new Codec<Integer>() {
+      @Override
+      public void put(ByteBuffer b, Integer t) {
+        b.putInt(t);
+      }
+
+      @Override
+      public Integer get(ByteBuffer b) {
+        return b.getInt();
+      }
+    };
+
+    Codec<byte[]> BYTES = new Codec<byte[]>() {
+      @Override
+      public void put(ByteBuffer b, byte[] t) {
+        b.putInt(t.length).put(t);
+      }
+
+      @Override
+      public byte[] get(ByteBuffer b) {
+        byte[] ret = new byte[b.getInt()];
+        b.get(ret);
+        return ret;
+      }
+    };
+
+    Codec<String> STRING = new Codec<String>() {
+      @Override
+      public void put(ByteBuffer b, String t) {
+        BYTES.put(b, t.getBytes(StandardCharsets.UTF_8));
+      }
+
+      @Override
+      public String get(ByteBuffer b) {
+        // through a copy; the buffer may be direct, or read only
+        return new String(BYTES.get(b), StandardCharsets.UTF_8);
+      }
+    };
+  }
+
+  private static final int ENCODE_MIN = 64;
+  private static final ThreadLocal<int[]> ENCODE_HINT = ThreadLocal.withInitial(() -> new int[] { ENCODE_MIN });
+
+  /**
+   * Binary encoder: key, a present byte, then the value if not a tombstone.
+   * Encodes straight into a fresh buffer with room either side for the record
+   * header and crc, so the record is framed in place; the only copy left is
+   * the one into the write buffer. Each thread sizes that buffer from what it
+   * encoded recently, doubling and encoding again if it was too small.
+   * @param kc key codec
+   * @param vc value codec
+   * @param <KK> key type
+   * @param <VV> value type
+   * @return encoder
+   */
+  public static <KK, VV> Encoder<KK, VV> binaryEncoder(Codec<KK> kc, Codec<VV> vc) {
+    return new BinaryEncoder<>(kc, vc);
+  }
+
+  /**
+   * The one encoder whose buffers frame() may write its header and crc into;
+   * anyone else's buffer might be shared, so it gets copied.
+   */
+  private static final class BinaryEncoder<KK, VV> implements Encoder<KK, VV> {
+    private final Codec<KK> kc;
+    private final Codec<VV> vc;
+
+    BinaryEncoder(Codec<KK> kc, Codec<VV> vc) {
+      this.kc = kc;
+      this.vc = vc;
+    }
+
+    @Override
+    public ByteBuffer encode(KK k, VV v) throws IOException {
+      int[] hint = ENCODE_HINT.get();
+      for (; ; ) {
+        ByteBuffer b = ByteBuffer.allocate(Integer.BYTES + hint[0] + Integer.BYTES);
+        b.position(Integer.BYTES);
+        b.limit(b.capacity() - Integer.BYTES);
+        try {
+          kc.put(b, k);
+          b.put((byte) (v == null ? 0 : 1));
+          if (v != null) {
+            vc.put(b, v);
+          }
+          int len = b.position() - Integer.BYTES;
+          if (len < hint[0] / 4 && hint[0] > ENCODE_MIN) {
+            // drift back down after a big one, rather than pin the size
+            hint[0] = hint[0] / 2;
+          }
+          b.limit(b.position());
+          b.position(Integer.BYTES);
+          return b;
+        } catch (BufferOverflowException e) {
+          if (hint[0] > LEN_MASK) {
+            throw new IOException("Record too large");
+          }
+          hint[0] = hint[0] * 2;
+        }
+      }
+    }
+  }
+
+  /**
+   * Binary decoder, matching binaryEncoder().
+   * @param kc key codec
+   * @param vc value codec
+   * @param <KK> key type
+   * @param <VV> value type
+   * @return decoder
+   */
+  public static <KK, VV> Decoder<KK, VV> binaryDecoder(Codec<KK> kc, Codec<VV> vc) {
+    return (arr) -> {
+      ByteBuffer b = ByteBuffer.wrap(arr);
+      KK k = kc.get(b);
+      return new SimpleImmutableEntry<>(k, (b.get() == 0) ? null : vc.get(b));
+    };
+  }
+
   public ChiseledMap(File file, OpenOption open, Comparator<K> comp) throws IOException {
     this(file, open, comp, null, null);
   }
@@ -175,8 +469,10 @@ public class ChiseledMap<K, V> extends AbstractMap<K, V> implements ConcurrentMa
     this.decoder = (decoder == null) ? DECODE_JAVA_SER : decoder;
     this.comp = (comp == null) ? (a, b) -> ((Comparable<K>) a).compareTo(b) : comp;
     this.map = new ConcurrentSkipListMap<>(this.comp);
+    this.expiries = new ConcurrentSkipListMap<>(this.comp);
+    this.timeline = new ConcurrentSkipListSet<>(Comparator.<Expiring<K>>comparingLong(e -> e.at)
+      .thenComparing(e -> e.key, this.comp));
     this.file = file;
-    this.digest = new CRC32();
     switch (open) {
       case MUST_BE_NEW:
         this.fc = FileChannel.open(file.toPath(), CREATE_NEW, READ, WRITE);
@@ -188,89 +484,418 @@ public class ChiseledMap<K, V> extends AbstractMap<K, V> implements ConcurrentMa
         this.fc = FileChannel.open(file.toPath(), CREATE, READ, WRITE);
         break;
     }
-    if (fc.size() > 0) {
-      verifyHeader();
-    } else {
-      writeHeader();
+    try {
+      if (fc.size() > 0) {
+        if (readHeader()) {
+          rebuild(loadCheckpoint(), false);
+        } else {
+          // from before the epoch; scan it all, then give it one
+          checkpointFile().delete();
+          rebuild(HDR.length, true);
+          epoch = newEpoch();
+          writeHeader();
+        }
+      } else {
+        checkpointFile().delete();
+        epoch = newEpoch();
+        writeHeader();
+        rebuild(HDR.length, false);
+      }
+    } catch (IOException | RuntimeException e) {
+      fc.close();
+      throw e;
     }
-    rebuild(fc);
   }
 
-  private void verifyHeader() throws IOException {
+  private boolean readHeader() throws IOException {
+    // true for a current header, false for one from before the epoch
     ByteBuffer p = ByteBuffer.allocate(HDR.length);
-    readFully(0, p);
+    readFully(fc, 0, p);
     p.clear();
-    if (p.compareTo(ByteBuffer.wrap(HDR)) != 0) {
+    if (p.equals(ByteBuffer.wrap(HDR))) {
+      return false;
+    }
+    p.limit(MAGIC.length);
+    if (!p.equals(ByteBuffer.wrap(MAGIC))) {
       throw new IOException("File Header Mismatch!");
     }
+    p.clear();
+    epoch = p.getLong(MAGIC.length);
+    return true;
   }
 
   private void writeHeader() throws IOException {
     // write at the beginning, then leave position alone
     fc.position(0);
-    writeFully(ByteBuffer.wrap(HDR), 0);
+    writeFully(fc, header(epoch), 0);
   }
 
-  private void rebuild(FileChannel fc) throws IOException {
-    // scan the entire file, loading each entry where crc matches.
-    currentWritePos = HDR.length;
-    long[] nextPos = new long[1];
-    for (; ; ) {
-      try {
-        Entry<K, V> got = fetch(currentWritePos, true, nextPos);
-        map.put(got.getKey(), currentWritePos);
-        currentWritePos = nextPos[0];
-        entriesOnDisk++;
-      } catch (Exception e) {
-        // truncate to end of last known good block.
-        nextWritePos = currentWritePos;
-        fc.truncate(currentWritePos);
-        break;
+  private static ByteBuffer header(long epoch) {
+    ByteBuffer ret = ByteBuffer.allocate(HDR.length);
+    ret.put(MAGIC).putLong(epoch).flip();
+    return ret;
+  }
+
+  private static long newEpoch() {
+    // random, so unrelated logs never share one
+    return ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+  }
+
+  private void rebuild(long from, boolean legacy) throws IOException {
+    // two passes over the log from this point on. First a cheap sequential
+    // walk of the length words to find record boundaries, then crc checks
+    // and decoding spread over the fork join pool. Results are applied in
+    // address order, so the highest address for a key wins. Done in waves,
+    // to bound how many decoded keys are held at once.
+    long size = fc.size();
+    currentWritePos = from;
+    nextWritePos = size;
+    long now = System.currentTimeMillis();
+    int wave = REBUILD_CHUNK * Math.max(1, ForkJoinPool.getCommonPoolParallelism()) * 4;
+    long[] addrs = new long[wave];
+    int[] words = new int[wave];
+    ByteBuffer hdrs = ByteBuffer.allocate(SCAN_BUFFER);
+    long hdrsAt = from;
+    hdrs.limit(0);
+    long pos = from;
+    boolean torn = false;
+    while (!torn && pos < size) {
+      int n = 0;
+      for (; n < wave; n++) {
+        if (pos + Integer.BYTES > size) {
+          torn = pos < size;
+          break;
+        }
+        if (pos + Integer.BYTES > hdrsAt + hdrs.limit()) {
+          hdrsAt = pos;
+          hdrs.clear();
+          hdrs.limit((int) Math.min(hdrs.capacity(), size - pos));
+          readFully(fc, pos, hdrs);
+        }
+        int word = hdrs.getInt((int) (pos - hdrsAt));
+        if (legacy && (word & ~LEN_MASK) != 0 && word > 0 && pos + Integer.BYTES + word + Integer.BYTES <= size) {
+          // a pre-epoch file had no flags, just lengths up to 2GB. A whole
+          // record that size is real data, not a torn tail; truncating here
+          // would throw away everything after it.
+          throw new IOException("Record at " + pos + " is " + word + " bytes; records over " + LEN_MASK +
+                                " bytes are not supported");
+        }
+        long next = pos + Integer.BYTES + (word & LEN_MASK) + Integer.BYTES;
+        if (next > size) {
+          torn = true;
+          break;
+        }
+        addrs[n] = pos;
+        words[n] = word;
+        pos = next;
+      }
+      boolean inline = n <= REBUILD_CHUNK;
+      List<ForkJoinTask<RebuildChunk>> tasks = new ArrayList<>();
+      for (int i = 0; i < n; i = i + REBUILD_CHUNK) {
+        RebuildChunk c = new RebuildChunk(addrs, words, i, Math.min(n, i + REBUILD_CHUNK));
+        tasks.add(inline ? ForkJoinTask.adapt(c::run, c) : ForkJoinPool.commonPool().submit(c::run, c));
+      }
+      for (ForkJoinTask<RebuildChunk> t : tasks) {
+        RebuildChunk c = inline ? t.invoke() : t.join();
+        for (int i = 0; i < c.got.size(); i++) {
+          index(c.got.get(i).getKey(), c.got.get(i).getValue(), c.expires.get(i), now);
+          entriesOnDisk++;
+        }
+        if (c.bad < c.to) {
+          pos = addrs[c.bad];
+          torn = true;
+          break;
+        }
+      }
+    }
+    if (torn) {
+      // truncate to end of last known good record.
+      fc.truncate(pos);
+    }
+    currentWritePos = pos;
+    nextWritePos = pos;
+  }
+
+  /**
+   * CRC check and decode one contiguous run of records during rebuild.
+   * Stops at the first bad record, noting where.
+   */
+  private class RebuildChunk {
+    private final long[] addrs;
+    private final int[] words;
+    private final int to;
+    private final List<Entry<K, Long>> got = new ArrayList<>();
+    private final List<Long> expires = new ArrayList<>();
+    private int bad;
+
+    RebuildChunk(long[] addrs, int[] words, int from, int to) {
+      this.addrs = addrs;
+      this.words = words;
+      this.bad = from;
+      this.to = to;
+    }
+
+    void run() {
+      int[] word = new int[1];
+      List<Entry<K, V>> ents = new ArrayList<>();
+      List<Long> at = new ArrayList<>();
+      for (; bad < to; bad++) {
+        try {
+          byte[] r = readBody(addrs[bad], word);
+          checkDigest(r);
+          ents.clear();
+          at.clear();
+          decodeRecord(addrs[bad], words[bad], r, ents, at);
+          long expiresAt = ((words[bad] & FLAG_TTL) != 0) ? ByteBuffer.wrap(r).getLong(0) : 0L;
+          for (int i = 0; i < ents.size(); i++) {
+            Long addr = ents.get(i).getValue() == null ? null : at.get(i);
+            got.add(new AbstractMap.SimpleImmutableEntry<>(ents.get(i).getKey(), addr));
+            expires.add(expiresAt);
+          }
+        } catch (Exception e) {
+          return;
+        }
       }
     }
   }
 
-  private Entry<K, V> fetch(long addr, boolean check, long[] nextPos) throws IOException {
-    // core retrieval by address code. First, flush outstanding data
-    if (pendingWrites > 0) {
-      flushBuffer();
+  private void index(K key, Long addr, long expiresAt, long now) {
+    // apply one replayed record; an expired record reads as a delete
+    preserve(key);
+    if (addr == null || (expiresAt != 0 && expiresAt <= now)) {
+      map.remove(key);
+      expireAt(key, 0);
+    } else {
+      map.put(key, addr);
+      expireAt(key, expiresAt);
+    }
+  }
+
+  private void decodeRecord(long addr, int word, byte[] r, List<Entry<K, V>> got, List<Long> addrs)
+    throws IOException {
+    // a top level record: either one entry, or a batch of unframed
+    // [len][payload] members, each addressable on its own.
+    if ((word & FLAG_BATCH) != 0) {
+      ByteBuffer b = ByteBuffer.wrap(r, 0, r.length - Integer.BYTES);
+      while (b.hasRemaining()) {
+        int at = b.position();
+        int len = b.getInt();
+        addrs.add(addr + Integer.BYTES + at);
+        got.add(decoder.decode(Arrays.copyOfRange(r, at + Integer.BYTES, at + Integer.BYTES + len)));
+        b.position(at + Integer.BYTES + len);
+      }
+    } else {
+      addrs.add(addr);
+      got.add(decodeBody(word, r));
+    }
+  }
+
+  private Entry<K, V> decodeBody(int word, byte[] r) throws IOException {
+    // [expiry] first if it has one, then the (maybe compressed) payload
+    if ((word & FLAG_TTL) != 0) {
+      r = Arrays.copyOfRange(r, Long.BYTES, r.length);
+    }
+    return decoder.decode(((word & FLAG_DEFLATE) != 0) ? inflate(r) : r);
+  }
+
+  private Entry<K, V> fetch(long addr) throws IOException {
+    // core retrieval by address code. Decode key and value. Rock on. Note there
+    // is a spare 4 bytes at the end. Dirty coding FTW!
+    int[] word = new int[1];
+    ValueCache cache = valueCache;
+    if (cache == null) {
+      byte[] r = readBody(addr, word);
+      return decodeBody(word[0], r);
+    }
+    long gen = generation;
+    Entry<K, V> ret = cache.get(addr);
+    if (ret == null) {
+      byte[] r = readBody(addr, word);
+      ret = decodeBody(word[0], r);
+      cache.put(gen, addr, ret, r.length);
+    }
+    return unshared(ret);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <K, V> Entry<K, V> unshared(Entry<K, V> e) {
+    // a cached entry goes to every reader. byte[] values are the usual
+    // mutable kind, so each reader gets its own copy of those.
+    if (e.getValue() instanceof byte[]) {
+      return new SimpleImmutableEntry<>(e.getKey(), (V) ((byte[]) e.getValue()).clone());
+    }
+    return e;
+  }
+
+  private byte[] readBody(long addr, int[] word) throws IOException {
+    // payload + crc; unflushed records come straight from the write buffer,
+    // then a mapped window if we can, else the channel.
+    byte[] r = (addr >= nextWritePos) ? readBuffered(addr, word) : null;
+    if (r == null && windows != null) {
+      r = readMapped(addr, word);
+    }
+    if (r == null) {
+      r = readChannel(addr, word);
+    }
+    return r;
+  }
+
+  private void checkDigest(byte[] r) throws IOException {
+    // last 4 bytes are the digest
+    ByteBuffer wrap = ByteBuffer.wrap(r, 0, r.length - Integer.BYTES);
+    int d = ByteBuffer.wrap(r).getInt(r.length - Integer.BYTES);
+    CRC32 digest = DIGEST.get();
+    digest.reset();
+    digest.update(wrap);
+    if ((int) (digest.getValue() & DIGEST_MASK) != d) {
+      throw new IOException("CRC mismatch");
     }
-    // read the length
+  }
+
+  private byte[] readChannel(long addr, int[] word) throws IOException {
+    // read the length, then the data + crc
     ByteBuffer tmp = ByteBuffer.allocate(Integer.BYTES);
-    readFully(addr, tmp);
-    tmp.clear();
-    int len = tmp.getInt(0);
-    // read data + crc
+    readFully(fc, addr, tmp);
+    word[0] = tmp.getInt(0);
+    int len = checkLength(addr, word[0] & LEN_MASK);
     byte[] r = new byte[len + Integer.BYTES];
-    ByteBuffer wrap = ByteBuffer.wrap(r);
-    readFully(addr + Integer.BYTES, wrap);
-    wrap.clear();
-    // if we are checking...
-    if (check) {
-      // last 4 bytes are the digest;
-      int d = wrap.getInt(wrap.capacity() - Integer.BYTES);
-      wrap.limit(wrap.capacity() - Integer.BYTES);
-      synchronized (this) {
-        // sync here so we can reuse digest.
-        digest.reset();
-        digest.update(wrap);
-        int chk = (int) (digest.getValue() & DIGEST_MASK);
-        if (chk != d) {
-          throw new IOException();
+    readFully(fc, addr + Integer.BYTES, ByteBuffer.wrap(r));
+    return r;
+  }
+
+  private byte[] readBuffered(long addr, int[] word) {
+    // optimistic copy out of the write buffer, good if no flush intervened.
+    // Null means it is on disk by now.
+    long stamp = bufferLock.tryOptimisticRead();
+    if (stamp != 0) {
+      byte[] r = copyBuffered(addr, word);
+      if (bufferLock.validate(stamp)) {
+        return r;
+      }
+    }
+    stamp = bufferLock.readLock();
+    try {
+      return copyBuffered(addr, word);
+    } finally {
+      bufferLock.unlockRead(stamp);
+    }
+  }
+
+  private byte[] copyBuffered(long addr, int[] word) {
+    long base = nextWritePos;
+    if (addr < base) {
+      return null;
+    }
+    ByteBuffer dup = writeBuffer.duplicate();
+    dup.clear();
+    int off = (int) (addr - base);
+    if (off + Integer.BYTES + Integer.BYTES > dup.capacity()) {
+      return null;
+    }
+    word[0] = dup.getInt(off);
+    int len = word[0] & LEN_MASK;
+    if (off + len + Integer.BYTES + Integer.BYTES > dup.capacity()) {
+      // garbage from a racing flush; validation will toss it
+      return null;
+    }
+    byte[] r = new byte[len + Integer.BYTES];
+    dup.position(off + Integer.BYTES);
+    dup.get(r);
+    return r;
+  }
+
+  private byte[] readMapped(long addr, int[] word) throws IOException {
+    // null if the record is not (yet) covered by a single window
+    ByteBuffer w = window(addr, Integer.BYTES);
+    if (w == null) {
+      return null;
+    }
+    int off = (int) (addr % MAP_WINDOW);
+    word[0] = w.getInt(off);
+    int len = checkLength(addr, word[0] & LEN_MASK);
+    w = window(addr, len + Integer.BYTES + Integer.BYTES);
+    if (w == null) {
+      return null;
+    }
+    byte[] r = new byte[len + Integer.BYTES];
+    ByteBuffer dup = w.duplicate();
+    dup.position(off + Integer.BYTES);
+    dup.get(r);
+    return r;
+  }
+
+  private int checkLength(long addr, int len) throws IOException {
+    long end = addr + len + Integer.BYTES + Integer.BYTES;
+    if (len < 0 || (end > currentWritePos && end > fc.size())) {
+      throw new IOException("Bad record length at: " + addr);
+    }
+    return len;
+  }
+
+  private ByteBuffer window(long addr, int len) throws IOException {
+    int w = (int) (addr / MAP_WINDOW);
+    int need = (int) (addr % MAP_WINDOW) + len;
+    if (need > MAP_WINDOW) {
+      // straddles two windows
+      return null;
+    }
+    MappedByteBuffer[] ws = windows;
+    if (ws != null && w < ws.length && ws[w] != null && ws[w].capacity() >= need) {
+      return ws[w];
+    }
+    synchronized (windowsLock) {
+      // (re)map this window out to the current end of file, but only once
+      // the file has grown well past the old mapping; until then the newest
+      // records are read from the channel instead. Bounds the remaps to a
+      // handful per window rather than one per read of a new record.
+      ws = windows;
+      if (ws == null) {
+        return null;
+      }
+      long base = w * MAP_WINDOW;
+      long size = Math.min(fc.size() - base, MAP_WINDOW);
+      if (size < need) {
+        return null;
+      }
+      if (w < ws.length && ws[w] != null) {
+        int cap = ws[w].capacity();
+        if (cap >= need) {
+          return ws[w];
+        }
+        long grow = Math.min(Math.max(cap, MAP_MIN_GROWTH), MAP_MAX_GROWTH);
+        if (size < Math.min(cap + grow, MAP_WINDOW)) {
+          return null;
         }
       }
-      wrap.clear();
+      ws = Arrays.copyOf(ws, Math.max(ws.length, w + 1));
+      ws[w] = fc.map(FileChannel.MapMode.READ_ONLY, base, size);
+      remaps++;
+      windows = ws;
+      return ws[w];
     }
-    if (nextPos != null) {
-      // if we have a nextpos array, return the next adddress.
-      nextPos[0] = addr + len + Integer.BYTES + Integer.BYTES;
+  }
+
+  long remaps() {
+    // for tests
+    return remaps;
+  }
+
+  /**
+   * Serve reads from memory mapped windows over the log rather than
+   * positional FileChannel reads. Windows are remapped as the file grows,
+   * in steps that double up to 64MB; records not covered by a mapping yet
+   * fall back to a channel read.
+   * @param mmap true to turn it on
+   * @return this map
+   */
+  public ChiseledMap<K, V> setMemoryMapped(boolean mmap) {
+    synchronized (windowsLock) {
+      windows = mmap ? new MappedByteBuffer[0] : null;
     }
-    // decode key and value. Rock on. Note there is a spare 4 bytes at the
-    // end. Dirty coding FTW!
-    return decoder.decode(r);
+    return this;
   }
 
-  private void readFully(long addr, ByteBuffer tmp) throws IOException {
+  private static void readFully(FileChannel fc, long addr, ByteBuffer tmp) throws IOException {
     do {
       int many = fc.read(tmp, addr);
       if (many <= 0) {
@@ -281,253 +906,2281 @@ public class ChiseledMap<K, V> extends AbstractMap<K, V> implements ConcurrentMa
   }
 
   private synchronized void flushBuffer() throws IOException {
-    // flush defautl buffer, reset pending count
-    flushBuffer(writeBuffer);
-    pendingWrites = 0;
+    // flush the write buffer to disk, then, so readers of the buffer
+    // can tell, bump the next write pos under the buffer lock.
+    writeBuffer.flip();
+    int toWrite = writeBuffer.remaining();
+    writeFully(fc, writeBuffer, nextWritePos);
+    long stamp = bufferLock.writeLock();
+    try {
+      writeBuffer.clear();
+      nextWritePos = nextWritePos + toWrite;
+    } finally {
+      bufferLock.unlockWrite(stamp);
+    }
   }
 
-  private void flushBuffer(ByteBuffer b) throws IOException {
-    // flush arbitrary buffer to disk, update next write pos
-    b.flip();
-    int toWrite = b.remaining();
-    writeFully(b, nextWritePos);
-    b.clear();
-    nextWritePos = nextWritePos + toWrite;
+  private synchronized long append(ByteBuffer rec, int entries) throws IOException {
+    if (follower) {
+      throw new IOException("Follower is read only");
+    }
+    return appendRecord(rec, entries);
+  }
+
+  private synchronized long appendRecord(ByteBuffer rec, int entries) throws IOException {
+    // core append path for all mutations; return the current write pos. Records
+    // arrive already encoded and checksummed, so all that happens under the
+    // monitor is a copy into the write buffer.
+    long ret = currentWritePos;
+    int fp = rec.remaining();
+    write(rec);
+    this.currentWritePos = currentWritePos + fp;
+    entriesOnDisk = entriesOnDisk + entries;
+    if (tailing > 0) {
+      synchronized (feedLock) {
+        feedLock.notifyAll();
+      }
+    }
+    appendsSinceCheckpoint = appendsSinceCheckpoint + entries;
+    if (checkpointEvery > 0 && appendsSinceCheckpoint >= checkpointEvery) {
+      appendsSinceCheckpoint = 0;
+      checkpointInBackground();
+    }
+    if (autoCompactRatio > 0 && !follower && views.isEmpty() && entriesOnDisk >= autoCompactMinEntries && liveRatio() < autoCompactRatio) {
+      compactInBackground();
+    }
+    return ret;
   }
 
-  private synchronized long append(K key, V v) throws IOException {
-    // core append path for all mutations
+  private ByteBuffer frame(K key, V v) throws IOException {
+    return frame(key, v, 0L);
+  }
 
-    // encode to byte buffer, record length
+  private ByteBuffer frame(K key, V v, long expiresAt) throws IOException {
+    // encoding, compression and checksumming are the expensive part; do them
+    // outside any lock.
     ByteBuffer payload = encoder.encode(key, v);
-    lenBuffer.clear();
-    lenBuffer.putInt(0, payload.remaining());
+    boolean ours = encoder instanceof BinaryEncoder;
+    int flags = 0;
+    if (compressThreshold > 0 && payload.remaining() >= compressThreshold) {
+      ByteBuffer z = deflate(payload, compressLevel);
+      if (z != null) {
+        payload = z;
+        ours = false;
+        flags = FLAG_DEFLATE;
+      }
+    }
+    if (expiresAt != 0) {
+      ByteBuffer b = ByteBuffer.allocate(Long.BYTES + payload.remaining());
+      b.putLong(expiresAt).put(payload).flip();
+      payload = b;
+      ours = false;
+      flags = flags | FLAG_TTL;
+    }
+    return ours ? frameInPlace(payload, flags, DIGEST.get()) : frame(payload, flags, DIGEST.get());
+  }
 
-    // create crc checksum
-    digest.reset();
-    digest.update(payload.slice());
-    int d = (int) (digest.getValue() & DIGEST_MASK);
-    digestBuffer.clear();
-    digestBuffer.putInt(0, d);
+  /**
+   * Compress records whose encoded size is at least the threshold, with the
+   * JDK Deflater. Records are flagged as compressed in their header, so
+   * compressed and plain records mix freely in a file. Records which do not
+   * shrink are stored plain, as are write batch members. 0 turns it off.
+   * @param threshold minimum encoded size to bother compressing, 0 or more
+   * @param level Deflater level, Deflater.DEFAULT_COMPRESSION or 0-9
+   * @return this map
+   */
+  public ChiseledMap<K, V> setCompression(int threshold, int level) {
+    if (threshold < 0) {
+      throw new IllegalArgumentException("Compression threshold: " + threshold);
+    }
+    if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+      throw new IllegalArgumentException("Deflater level: " + level);
+    }
+    this.compressLevel = level;
+    this.compressThreshold = threshold;
+    return this;
+  }
 
-    // return the current write pos
-    long ret = currentWritePos;
-    int fp = Integer.BYTES + Integer.BYTES + payload.remaining();
-    write(lenBuffer, payload, digestBuffer, fp);
-    this.currentWritePos = currentWritePos + fp;
-    entriesOnDisk++;
+  private static ByteBuffer deflate(ByteBuffer payload, int level) {
+    // [int raw length][deflated], or null if it does not shrink.
+    if (payload.remaining() <= Integer.BYTES) {
+      // no room for the length word, let alone anything deflated
+      return null;
+    }
+    byte[] in = new byte[payload.remaining()];
+    payload.duplicate().get(in);
+    byte[] out = new byte[in.length];
+    Deflater d = DEFLATER.get();
+    d.reset();
+    d.setLevel(level);
+    d.setInput(in);
+    d.finish();
+    int n = d.deflate(out, Integer.BYTES, out.length - Integer.BYTES);
+    if (!d.finished()) {
+      return null;
+    }
+    ByteBuffer ret = ByteBuffer.wrap(out, 0, Integer.BYTES + n);
+    ret.putInt(0, in.length);
     return ret;
   }
 
-  private void write(ByteBuffer len, ByteBuffer arr, ByteBuffer d, int fp) throws IOException {
-    // write the data into the buffer, flushing if necessary
-    if (writeBuffer.capacity() < fp) {
+  private static byte[] inflate(byte[] r) throws IOException {
+    // keeps the spare 4 bytes at the end, same as an uncompressed read.
+    int rawLen = ByteBuffer.wrap(r).getInt(0);
+    byte[] out = new byte[rawLen + Integer.BYTES];
+    Inflater inf = INFLATER.get();
+    inf.reset();
+    inf.setInput(r, Integer.BYTES, r.length - Integer.BYTES - Integer.BYTES);
+    try {
+      int n = 0;
+      while (n < rawLen && !inf.finished()) {
+        int got = inf.inflate(out, n, rawLen - n);
+        if (got == 0 && inf.needsInput()) {
+          break;
+        }
+        n = n + got;
+      }
+      if (n != rawLen) {
+        throw new IOException("Short compressed record");
+      }
+    } catch (DataFormatException e) {
+      throw new IOException(e);
+    }
+    return out;
+  }
+
+  private static ByteBuffer frameInPlace(ByteBuffer payload, int flags, CRC32 crc) throws IOException {
+    // a BinaryEncoder buffer, fresh, with room left for the header and crc
+    int len = payload.remaining();
+    if (len > LEN_MASK) {
+      throw new IOException("Record too large: " + len);
+    }
+    crc.reset();
+    crc.update(payload.array(), payload.arrayOffset() + Integer.BYTES, len);
+    payload.position(0);
+    payload.limit(Integer.BYTES + len + Integer.BYTES);
+    payload.putInt(0, flags | len);
+    payload.putInt(Integer.BYTES + len, (int) (crc.getValue() & DIGEST_MASK));
+    return payload;
+  }
+
+  private static ByteBuffer frame(ByteBuffer payload, int flags, CRC32 crc) throws IOException {
+    // a full record: length word, payload, crc checksum
+    int len = payload.remaining();
+    if (len > LEN_MASK) {
+      throw new IOException("Record too large: " + len);
+    }
+    ByteBuffer rec = ByteBuffer.allocate(payload.remaining() + Integer.BYTES + Integer.BYTES);
+    rec.putInt(flags | payload.remaining());
+    crc.reset();
+    crc.update(payload.slice());
+    rec.put(payload);
+    rec.putInt((int) (crc.getValue() & DIGEST_MASK));
+    rec.flip();
+    return rec;
+  }
+
+  private void write(ByteBuffer rec) throws IOException {
+    // write the record into the buffer, flushing if necessary
+    if (writeBuffer.capacity() < rec.remaining()) {
       // can't use the write buffer, flush pending and write it explicitly.
       flushBuffer();
-      ByteBuffer tmp = ByteBuffer.allocateDirect(fp);
-      tmp.put(len);
-      tmp.put(arr);
-      tmp.put(d);
-      tmp.flip();
-      flushBuffer(tmp);
+      int toWrite = rec.remaining();
+      writeFully(fc, rec, nextWritePos);
+      nextWritePos = nextWritePos + toWrite;
     } else {
-      if (writeBuffer.remaining() < fp) {
+      if (writeBuffer.remaining() < rec.remaining()) {
         // no room at the inn. flush and go.
         flushBuffer();
       }
-      // actually append the 3 parts to the buffer, inc the counter.
-      writeBuffer.put(len);
-      writeBuffer.put(arr);
-      writeBuffer.put(d);
-      pendingWrites++;
+      writeBuffer.put(rec);
     }
   }
 
-  private void writeFully(ByteBuffer b, long pos) throws IOException {
+  private static void writeFully(FileChannel fc, ByteBuffer b, long pos) throws IOException {
     while (b.hasRemaining()) {
       int wrote = fc.write(b, pos);
       pos = pos + wrote;
     }
   }
 
-  /**
-   * Number of entries actually on the disk, even if invalid.
-   * @return number of entries on disk, live and dead.
-   */
-  public long entriesOnDisk() {
-    return entriesOnDisk;
+  private ByteBuffer readRecord(long addr, CRC32 crc) throws IOException {
+    // raw record, length + payload + crc, no decoding. Batch members have
+    // no crc of their own, so the crc is recomputed.
+    ByteBuffer tmp = ByteBuffer.allocate(Integer.BYTES);
+    readFully(fc, addr, tmp);
+    int len = tmp.getInt(0) & LEN_MASK;
+    ByteBuffer rec = ByteBuffer.allocate(len + Integer.BYTES + Integer.BYTES);
+    readFully(fc, addr, rec);
+    crc.reset();
+    crc.update(rec.array(), Integer.BYTES, len);
+    rec.putInt(len + Integer.BYTES, (int) (crc.getValue() & DIGEST_MASK));
+    rec.flip();
+    return rec;
   }
 
-  /**
-   * File being used.
-   * @return file
-   */
-  public File getFile() {
-    return file;
+  @FunctionalInterface
+  private interface IOSupplier<T> {
+    T get() throws IOException;
   }
 
   /**
-   * File footprint on disk.
-   * @return file size
-   * @throws IOException on exception
+   * Run a read, coordinating with a concurrent compaction swapping the file
+   * out from under us. Optimistic first, only blocks if a swap happened.
    */
-  public long bytesOnDisk() throws IOException {
-    flushBuffer();
-    return fc.size();
+  private <T> T stable(IOSupplier<T> read) throws IOException {
+    long stamp = swapLock.tryOptimisticRead();
+    if (stamp != 0) {
+      try {
+        T ret = read.get();
+        if (swapLock.validate(stamp)) {
+          return ret;
+        }
+      } catch (IOException | RuntimeException e) {
+        if (swapLock.validate(stamp)) {
+          throw e;
+        }
+      }
+    }
+    stamp = swapLock.readLock();
+    try {
+      return read.get();
+    } finally {
+      swapLock.unlockRead(stamp);
+    }
   }
 
-  /**
-   * Close this TinyKVMap.
+  private Entry<K, V> lookup(Object key) throws IOException {
+    return stable(() -> {
+      Long addr = liveAddr(key);
+      return (addr == null) ? null : fetch(addr);
+    });
+  }
+
+  private Long liveAddr(Object key) {
+    Long addr = map.get(key);
+    return (addr == null || expired(key)) ? null : addr;
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<Entry<K, V>> lookupAll(List<K> keys, Function<Object, Long> addrOf) throws IOException {
+    // read in address order, which makes a run of random reads mostly
+    // sequential, but hand them back in key order.
+    return stable(() -> {
+      long[] addrs = new long[keys.size()];
+      Integer[] order = new Integer[keys.size()];
+      for (int i = 0; i < addrs.length; i++) {
+        Long addr = addrOf.apply(keys.get(i));
+        addrs[i] = (addr == null) ? -1 : addr;
+        order[i] = i;
+      }
+      Arrays.sort(order, (o1, o2) -> Long.compare(addrs[o1], addrs[o2]));
+      Object[] got = new Object[addrs.length];
+      for (Integer i : order) {
+        got[i] = (addrs[i] < 0) ? null : fetch(addrs[i]);
+      }
+      List<Entry<K, V>> ret = new ArrayList<>(got.length);
+      for (Object o : got) {
+        if (o != null) {
+          ret.add((Entry<K, V>) o);
+        }
+      }
+      return ret;
+    });
+  }
+
+  /**
+   * Turn on a cache of decoded entries in front of the disk, keyed by record
+   * address. Since any write yields a new address, entries never go stale,
+   * they just age out. Bounded by entry count, by an estimate of bytes (the
+   * encoded size), or both, evicting least recently used; 0 leaves that
+   * dimension unbounded, and 0 for both turns the cache off.
+   * <p>The cache is split into CACHE_STRIPES stripes by address, each its own
+   * LRU behind its own lock with an even share of the bounds, so concurrent
+   * readers rarely contend; eviction is least recently used per stripe.
+   * <p>Cached keys and values are shared: every read of a cached record gets
+   * the same decoded objects. byte[] values are copied on the way out, but
+   * any other mutable value type must be treated as read only, or left
+   * uncached, since changing one changes it for every later reader.
+   * @param maxEntries max entries cached, 0 for no entry limit
+   * @param maxBytes max encoded bytes cached, 0 for no byte limit
+   * @return this map
+   */
+  public ChiseledMap<K, V> setValueCache(int maxEntries, long maxBytes) {
+    if (maxEntries <= 0 && maxBytes <= 0) {
+      valueCache = null;
+    } else {
+      valueCache = new ValueCache(maxEntries <= 0 ? Integer.MAX_VALUE : maxEntries,
+        maxBytes <= 0 ? Long.MAX_VALUE : maxBytes);
+    }
+    return this;
+  }
+
+  /**
+   * Value cache hits.
+   * @return hits, 0 if no cache.
+   */
+  public long cacheHits() {
+    ValueCache c = valueCache;
+    return (c == null) ? 0 : c.hits.get();
+  }
+
+  /**
+   * Value cache misses.
+   * @return misses, 0 if no cache.
+   */
+  public long cacheMisses() {
+    ValueCache c = valueCache;
+    return (c == null) ? 0 : c.misses.get();
+  }
+
+  private final class ValueCache {
+    private final List<CacheStripe> stripes = new ArrayList<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    ValueCache(int maxEntries, long maxBytes) {
+      // no more stripes than entries, so every stripe can hold something
+      int n = Math.min(CACHE_STRIPES, maxEntries);
+      for (int i = 0; i < n; i++) {
+        stripes.add(new CacheStripe((int) (((long) maxEntries + n - 1) / n),
+          (maxBytes == Long.MAX_VALUE) ? maxBytes : Math.max(1, maxBytes / n)));
+      }
+    }
+
+    private CacheStripe stripe(long addr) {
+      // addresses are record offsets; mix them so neighbours spread out
+      long h = addr * 0x9E3779B97F4A7C15L;
+      return stripes.get((int) ((h >>> 32) % stripes.size()));
+    }
+
+    Entry<K, V> get(long addr) {
+      Entry<K, V> got = stripe(addr).get(addr);
+      (got == null ? misses : hits).incrementAndGet();
+      return got;
+    }
+
+    void put(long gen, long addr, Entry<K, V> ent, int size) {
+      stripe(addr).put(gen, addr, ent, size);
+    }
+
+    void clear() {
+      for (CacheStripe s : stripes) {
+        s.clear();
+      }
+    }
+  }
+
+  private final class CacheStripe {
+    private final LinkedHashMap<Long, Entry<Entry<K, V>, Integer>> lru = new LinkedHashMap<>(16, 0.75f, true);
+    private final int maxEntries;
+    private final long maxBytes;
+    private long bytes = 0;
+
+    CacheStripe(int maxEntries, long maxBytes) {
+      this.maxEntries = maxEntries;
+      this.maxBytes = maxBytes;
+    }
+
+    synchronized Entry<K, V> get(long addr) {
+      Entry<Entry<K, V>, Integer> got = lru.get(addr);
+      return (got == null) ? null : got.getKey();
+    }
+
+    synchronized void put(long gen, long addr, Entry<K, V> ent, int size) {
+      // a compaction since the read means the address may mean something else now
+      if (gen == generation && lru.put(addr, new SimpleImmutableEntry<>(ent, size)) == null) {
+        bytes = bytes + size;
+        Iterator<Entry<Entry<K, V>, Integer>> it = lru.values().iterator();
+        while (lru.size() > maxEntries || bytes > maxBytes) {
+          bytes = bytes - it.next().getValue();
+          it.remove();
+        }
+      }
+    }
+
+    synchronized void clear() {
+      lru.clear();
+      bytes = 0;
+    }
+  }
+
+  /**
+   * Fraction of the records on disk which are still live; overwritten records
+   * and tombstones are dead. Record counts, not bytes, since the in memory
+   * picture only has addresses.
+   * @return live ratio, 1.0 for an empty log.
+   */
+  public double liveRatio() {
+    return entriesOnDisk == 0 ? 1.0d : (double) map.size() / entriesOnDisk;
+  }
+
+  /**
+   * Turn on auto compaction. When the live ratio drops below the specified
+   * ratio, and there are at least minEntries records on disk, a background
+   * compaction is started. A ratio of 0 turns it off.
+   * @param minLiveRatio minimum live ratio, 0.0-1.0
+   * @param minEntries minimum records on disk before compaction is considered
+   * @return this map
+   */
+  public ChiseledMap<K, V> setAutoCompact(double minLiveRatio, long minEntries) {
+    this.autoCompactRatio = minLiveRatio;
+    this.autoCompactMinEntries = minEntries;
+    return this;
+  }
+
+  /**
+   * Is a compaction running?
+   * @return true if compacting
+   */
+  public boolean isCompacting() {
+    return compacting.get();
+  }
+
+  private void compactInBackground() {
+    // claim it here, not in the thread, or every append until the thread gets
+    // going would start another one
+    if (compacting.compareAndSet(false, true)) {
+      Thread t = new Thread(() -> {
+        try {
+          compactClaimed();
+        } catch (IOException e) {
+          // best effort; the current log stays authoritative.
+        }
+      }, "ChiseledMap-compact");
+      t.setDaemon(true);
+      t.start();
+    }
+  }
+
+  /**
+   * Compact the log in place. Live records are copied raw (no decoding) to a
+   * new file while writes continue. Then, holding the monitor, anything written
+   * in the meantime is copied over, the new file is renamed over the old one,
+   * and the channel and addresses are swapped. Only one compaction runs at a time.
+   * @return bytes reclaimed, or -1 if a compaction was already running, or
+   * snapshot views are open.
+   * @throws IOException on exception
+   */
+  public long compact() throws IOException {
+    if (follower) {
+      // addresses have to match the primary's byte for byte
+      throw new IOException("Follower cannot compact");
+    }
+    if (!views.isEmpty() || !compacting.compareAndSet(false, true)) {
+      return -1;
+    }
+    return compactClaimed();
+  }
+
+  /**
+   * Compaction proper; the caller has already set the compacting flag, which
+   * is cleared on the way out.
+   */
+  private long compactClaimed() throws IOException {
+    FileChannel out = null;
+    File tmpFile = new File(file.getPath() + ".compact");
+    boolean swapped = false;
+    try {
+      // expired entries simply are not copied
+      expire();
+      out = FileChannel.open(tmpFile.toPath(), CREATE, TRUNCATE_EXISTING, READ, WRITE);
+      long nextEpoch = epoch + 1;
+      Compactor c = new Compactor(out, nextEpoch);
+      CRC32 crc = new CRC32();
+      // bulk copy, concurrent with writers. old addr, new addr per key.
+      flushBuffer();
+      TreeMap<K, long[]> copied = new TreeMap<>(comp);
+      for (Entry<K, Long> e : map.entrySet()) {
+        // anything still sitting in the write buffer gets picked up below
+        if (e.getValue() < nextWritePos) {
+          copied.put(e.getKey(), new long[] { e.getValue(), c.add(readRecord(e.getValue(), crc)) });
+        }
+      }
+      synchronized (this) {
+        if (!fc.isOpen()) {
+          throw new IOException("Closed");
+        }
+        if (!views.isEmpty()) {
+          // a view pins the old addresses; try again later
+          return -1;
+        }
+        // catch up with changes made during the copy
+        flushBuffer();
+        TreeMap<K, Long> moved = new TreeMap<>(comp);
+        for (Entry<K, Long> e : map.entrySet()) {
+          long[] prior = copied.remove(e.getKey());
+          boolean same = prior != null && prior[0] == e.getValue();
+          moved.put(e.getKey(), same ? prior[1] : c.add(readRecord(e.getValue(), crc)));
+        }
+        for (K gone : copied.keySet()) {
+          // removed during the copy, tombstone it so it stays gone.
+          c.add(frame(gone, null));
+        }
+        c.drain();
+        out.force(false);
+        long stamp = swapLock.writeLock();
+        try {
+          // addresses are about to change; an old checkpoint is worse than none.
+          checkpointFile().delete();
+          Files.move(tmpFile.toPath(), file.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+          swapped = true;
+          generation++;
+          epoch = nextEpoch;
+          FileChannel old = fc;
+          fc = out;
+          old.close();
+          synchronized (windowsLock) {
+            windows = (windows == null) ? null : new MappedByteBuffer[0];
+          }
+          map.putAll(moved);
+          if (valueCache != null) {
+            valueCache.clear();
+          }
+          long reclaimed = currentWritePos - c.pos;
+          currentWritePos = nextWritePos = durablePos = c.pos;
+          entriesOnDisk = c.records;
+          return reclaimed;
+        } finally {
+          swapLock.unlockWrite(stamp);
+        }
+      }
+    } finally {
+      if (!swapped && out != null) {
+        out.close();
+        tmpFile.delete();
+      }
+      compacting.set(false);
+    }
+  }
+
+  private File checkpointFile() {
+    return new File(file.getPath() + ".ckpt");
+  }
+
+  /**
+   * Turn on periodic checkpointing of the key index. After every so many
+   * appends a checkpoint is written in the background, and one is written on
+   * close(). 0 turns it off.
+   * @param everyAppends appends between checkpoints
+   * @return this map
+   */
+  public ChiseledMap<K, V> setAutoCheckpoint(long everyAppends) {
+    this.checkpointEvery = everyAppends;
+    return this;
+  }
+
+  private void checkpointInBackground() {
+    if (checkpointing.compareAndSet(false, true)) {
+      Thread t = new Thread(() -> {
+        try {
+          checkpoint();
+        } catch (IOException e) {
+          // best effort; worst case is a longer rebuild.
+        } finally {
+          checkpointing.set(false);
+        }
+      }, "ChiseledMap-checkpoint");
+      t.setDaemon(true);
+      t.start();
+    }
+  }
+
+  /**
+   * Write a checkpoint of the key index: the log position to replay from, then
+   * the sorted keys and their addresses. On open, the checkpoint is loaded and
+   * only the log after that position is replayed. The keys are captured while
+   * writes continue; anything changed during the capture is at or after the
+   * replay position, so the replay fixes it up.
+   * @return true if written, false if a compaction raced with it.
+   * @throws IOException on exception
+   */
+  public boolean checkpoint() throws IOException {
+    synchronized (checkpointLock) {
+      long gen;
+      long from;
+      long count;
+      long ep;
+      long print;
+      synchronized (this) {
+        flushBuffer();
+        gen = generation;
+        from = currentWritePos;
+        count = entriesOnDisk;
+        ep = epoch;
+        print = fingerprint(from);
+      }
+      File tmpFile = new File(file.getPath() + ".ckpt.tmp");
+      CheckedOutputStream cos = new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile),
+        64 * 1024), new CRC32());
+      try (DataOutputStream dos = new DataOutputStream(cos)) {
+        dos.writeLong(from);
+        // which log, and which version of it, this goes with
+        dos.writeLong(ep);
+        dos.writeLong(print);
+        dos.writeLong(count);
+        for (Entry<K, Long> e : map.entrySet()) {
+          // a negative key length means an expiry follows the key
+          ByteBuffer kb = encoder.encode(e.getKey(), null);
+          Long at = expiries.isEmpty() ? null : expiries.get(e.getKey());
+          dos.writeLong(e.getValue());
+          dos.writeInt(at == null ? kb.remaining() : -kb.remaining() - 1);
+          while (kb.hasRemaining()) {
+            dos.write(kb.get());
+          }
+          if (at != null) {
+            dos.writeLong(at);
+          }
+        }
+        dos.writeLong(-1L);
+        dos.writeLong(cos.getChecksum().getValue());
+      }
+      // everything the checkpoint references has to be durable first
+      flush();
+      synchronized (this) {
+        if (gen != generation) {
+          tmpFile.delete();
+          return false;
+        }
+        Files.move(tmpFile.toPath(), checkpointFile().toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+        return true;
+      }
+    }
+  }
+
+  private long loadCheckpoint() throws IOException {
+    // returns where to replay the log from; any doubt means a full rebuild.
+    File ckpt = checkpointFile();
+    if (ckpt.exists()) {
+      long size = fc.size();
+      CheckedInputStream cis = new CheckedInputStream(new BufferedInputStream(new FileInputStream(ckpt),
+        64 * 1024), new CRC32());
+      try (DataInputStream dis = new DataInputStream(cis)) {
+        long from = dis.readLong();
+        long ep = dis.readLong();
+        long print = dis.readLong();
+        // a stale sibling (an old one left where a snapshot was written, a log
+        // restored from backup) is internally fine; it just isn't this log's
+        if (ep != epoch || from < HDR.length || from > size || print != fingerprint(from)) {
+          throw new IOException("Checkpoint is not for this log");
+        }
+        long count = dis.readLong();
+        long now = System.currentTimeMillis();
+        for (long addr = dis.readLong(); addr >= 0; addr = dis.readLong()) {
+          int klen = dis.readInt();
+          byte[] kb = new byte[klen < 0 ? -klen - 1 : klen];
+          dis.readFully(kb);
+          long at = klen < 0 ? dis.readLong() : 0L;
+          if (addr >= size) {
+            throw new IOException("Checkpoint past end of log");
+          }
+          if (at == 0 || at > now) {
+            K key = decoder.decode(kb).getKey();
+            map.put(key, addr);
+            expireAt(key, at);
+          }
+        }
+        long chk = cis.getChecksum().getValue();
+        if (dis.readLong() == chk) {
+          entriesOnDisk = count;
+          return from;
+        }
+      } catch (IOException | RuntimeException e) {
+        // fall through to a full rebuild
+      }
+      map.clear();
+      expiries.clear();
+      timeline.clear();
+    }
+    entriesOnDisk = 0;
+    return HDR.length;
+  }
+
+  private long fingerprint(long from) throws IOException {
+    // crc of the bytes just before a log position: the tail of the last
+    // record there, crc included
+    int n = (int) Math.min(64, from - HDR.length);
+    CRC32 crc = new CRC32();
+    if (n > 0) {
+      ByteBuffer b = ByteBuffer.allocate(n);
+      readFully(fc, from - n, b);
+      b.flip();
+      crc.update(b);
+    }
+    return crc.getValue();
+  }
+
+  /**
+   * Buffered raw record appender for compaction.
+   */
+  private static final class Compactor {
+    private final FileChannel out;
+    private final ByteBuffer buf = ByteBuffer.allocateDirect(256 * 1024);
+    private long pos = HDR.length;
+    private long records = 0;
+
+    Compactor(FileChannel out, long epoch) throws IOException {
+      this.out = out;
+      writeFully(out, header(epoch), 0);
+    }
+
+    long add(ByteBuffer rec) throws IOException {
+      long ret = pos;
+      int len = rec.remaining();
+      if (buf.remaining() < len) {
+        drain();
+      }
+      if (buf.remaining() < len) {
+        writeFully(out, rec, pos);
+      } else {
+        buf.put(rec);
+      }
+      pos = pos + len;
+      records++;
+      return ret;
+    }
+
+    void drain() throws IOException {
+      buf.flip();
+      writeFully(out, buf, pos - buf.remaining());
+      buf.clear();
+    }
+  }
+
+  /**
+   * Number of entries actually on the disk, even if invalid.
+   * @return number of entries on disk, live and dead.
+   */
+  public long entriesOnDisk() {
+    return entriesOnDisk;
+  }
+
+  /**
+   * File being used.
+   * @return file
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * File footprint on disk.
+   * @return file size
    * @throws IOException on exception
    */
-  public synchronized void close() throws IOException {
+  public long bytesOnDisk() throws IOException {
     flushBuffer();
-    fc.close();
-    map.clear();
+    return fc.size();
+  }
+
+  /**
+   * Close this TinyKVMap.
+   * @throws IOException on exception
+   */
+  public void close() throws IOException {
+    setDurability(Durability.NONE, 0);
+    setExpirer(0);
+    if (checkpointEvery > 0 && fc.isOpen()) {
+      checkpoint();
+    }
+    synchronized (this) {
+      flushBuffer();
+      fc.close();
+      map.clear();
+      expiries.clear();
+      timeline.clear();
+      indexes.forEach(SecondaryIndex::clear);
+    }
+  }
+
+  @Override
+  public int size() {
+    return map.size();
+  }
+
+  /**
+   * Entry iterator. Necessary slushy with respect to concurrency.
+   * @return iterator of entries.
+   */
+  public Iterable<Entry<K, V>> entries() {
+    return () -> chunked(map.keySet().iterator());
+  }
+
+  /**
+   * Entry iterator over a range of keys, in key order. Records are read
+   * SCAN_CHUNK at a time, sorted by file address, so a scan does near
+   * sequential reads instead of a seek per entry. Slushy as entries().
+   * @param from low key, null for unbounded
+   * @param fromInclusive true if from is included
+   * @param to high key, null for unbounded
+   * @param toInclusive true if to is included
+   * @return iterator of entries.
+   */
+  public Iterable<Entry<K, V>> entries(K from, boolean fromInclusive, K to, boolean toInclusive) {
+    return () -> chunked(keys(from, fromInclusive, to, toInclusive).iterator());
+  }
+
+  /**
+   * Keys over a range, straight from memory; never touches the disk. Keys
+   * whose time to live is up are skipped, as get() and entries() do.
+   * @param from low key, null for unbounded
+   * @param fromInclusive true if from is included
+   * @param to high key, null for unbounded
+   * @param toInclusive true if to is included
+   * @return read only set view of the keys
+   */
+  public NavigableSet<K> keys(K from, boolean fromInclusive, K to, boolean toInclusive) {
+    ConcurrentNavigableMap<K, Long> m = map;
+    if (from != null && to != null) {
+      m = m.subMap(from, fromInclusive, to, toInclusive);
+    } else if (from != null) {
+      m = m.tailMap(from, fromInclusive);
+    } else if (to != null) {
+      m = m.headMap(to, toInclusive);
+    }
+    return new LiveKeys(Collections.unmodifiableNavigableSet(m.keySet()));
+  }
+
+  /**
+   * Read only key view that skips expired keys. size() has to count them
+   * when any key has a time to live.
+   */
+  private final class LiveKeys extends AbstractSet<K> implements NavigableSet<K> {
+    private final NavigableSet<K> keys;
+
+    LiveKeys(NavigableSet<K> keys) {
+      this.keys = keys;
+    }
+
+    private K live(Iterator<K> it) {
+      // next unexpired key, or null; the index holds no null keys
+      while (it.hasNext()) {
+        K k = it.next();
+        if (!expired(k)) {
+          return k;
+        }
+      }
+      return null;
+    }
+
+    private K must(K k) {
+      if (k == null) {
+        throw new NoSuchElementException();
+      }
+      return k;
+    }
+
+    private Iterator<K> filtered(Iterator<K> it) {
+      return new Iterator<K>() {
+        private K next = live(it);
+
+        @Override
+        public boolean hasNext() {
+          return next != null;
+        }
+
+        @Override
+        public K next() {
+          K ret = must(next);
+          next = live(it);
+          return ret;
+        }
+      };
+    }
+
+    @Override
+    public Iterator<K> iterator() {
+      return filtered(keys.iterator());
+    }
+
+    @Override
+    public Iterator<K> descendingIterator() {
+      return filtered(keys.descendingIterator());
+    }
+
+    @Override
+    public int size() {
+      if (expiries.isEmpty()) {
+        return keys.size();
+      }
+      int ret = 0;
+      for (Iterator<K> it = iterator(); it.hasNext(); it.next()) {
+        ret++;
+      }
+      return ret;
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return !iterator().hasNext();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      return keys.contains(o) && !expired(o);
+    }
+
+    @Override
+    public Comparator<? super K> comparator() {
+      return keys.comparator();
+    }
+
+    @Override
+    public K first() {
+      return must(live(keys.iterator()));
+    }
+
+    @Override
+    public K last() {
+      return must(live(keys.descendingIterator()));
+    }
+
+    @Override
+    public K lower(K k) {
+      return live(keys.headSet(k, false).descendingIterator());
+    }
+
+    @Override
+    public K floor(K k) {
+      return live(keys.headSet(k, true).descendingIterator());
+    }
+
+    @Override
+    public K ceiling(K k) {
+      return live(keys.tailSet(k, true).iterator());
+    }
+
+    @Override
+    public K higher(K k) {
+      return live(keys.tailSet(k, false).iterator());
+    }
+
+    @Override
+    public K pollFirst() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public K pollLast() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public NavigableSet<K> descendingSet() {
+      return new LiveKeys(keys.descendingSet());
+    }
+
+    @Override
+    public NavigableSet<K> subSet(K from, boolean fromInclusive, K to, boolean toInclusive) {
+      return new LiveKeys(keys.subSet(from, fromInclusive, to, toInclusive));
+    }
+
+    @Override
+    public NavigableSet<K> headSet(K to, boolean inclusive) {
+      return new LiveKeys(keys.headSet(to, inclusive));
+    }
+
+    @Override
+    public NavigableSet<K> tailSet(K from, boolean inclusive) {
+      return new LiveKeys(keys.tailSet(from, inclusive));
+    }
+
+    @Override
+    public NavigableSet<K> subSet(K from, K to) {
+      return subSet(from, true, to, false);
+    }
+
+    @Override
+    public NavigableSet<K> headSet(K to) {
+      return headSet(to, false);
+    }
+
+    @Override
+    public NavigableSet<K> tailSet(K from) {
+      return tailSet(from, true);
+    }
+  }
+
+  private Iterator<Entry<K, V>> chunked(Iterator<K> keys) {
+    return chunked(keys, this::liveAddr);
+  }
+
+  private Iterator<Entry<K, V>> chunked(Iterator<K> keys, Function<Object, Long> addrOf) {
+    return new Iterator<Entry<K, V>>() {
+      private Iterator<Entry<K, V>> chunk = Collections.emptyIterator();
+
+      @Override
+      public boolean hasNext() {
+        while (!chunk.hasNext() && keys.hasNext()) {
+          List<K> next = new ArrayList<>(SCAN_CHUNK);
+          while (keys.hasNext() && next.size() < SCAN_CHUNK) {
+            next.add(keys.next());
+          }
+          try {
+            chunk = lookupAll(next, addrOf).iterator();
+          } catch (IOException e) {
+            throw new RuntimeIOException(e);
+          }
+        }
+        return chunk.hasNext();
+      }
+
+      @Override
+      public Entry<K, V> next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return chunk.next();
+      }
+    };
+  }
+
+  @Override
+  public Set<K> keySet() {
+    return keys(null, false, null, false);
+  }
+
+  @Override
+  public Set<Entry<K, V>> entrySet() {
+    return new AbstractSet<Entry<K, V>>() {
+      @Override
+      public Iterator<Entry<K, V>> iterator() {
+        return entries().iterator();
+      }
+
+      @Override
+      public int size() {
+        return ChiseledMap.this.size();
+      }
+
+      @Override
+      public boolean add(Entry<K, V> entry) {
+        return ChiseledMap.this.putIfAbsent(entry.getKey(), entry.getValue()) == null;
+      }
+
+      @Override
+      public boolean remove(Object o) {
+        return ChiseledMap.this.remove(o) != null;
+      }
+
+      @Override
+      public void clear() {
+        ChiseledMap.this.clear();
+      }
+    };
+  }
+
+  /**
+   * Flush any buffered changes to disk, fsync.
+   * @throws IOException If you get an IOException, literally no guarantees
+   * can be made about the on disk state of the data.
+   */
+  public void flush() throws IOException {
+    flushBuffer();
+    // everything up to here was written before the force, so is covered by it
+    long gen = generation;
+    long target = nextWritePos;
+    FileChannel ch = fc;
+    try {
+      ch.force(false);
+    } catch (ClosedChannelException e) {
+      if (gen == generation) {
+        throw e;
+      }
+      // swapped out by a compaction, which forced the new file itself
+      return;
+    }
+    long stamp = swapLock.readLock();
+    try {
+      // a target from before a compaction is an offset into the old file
+      if (gen == generation) {
+        synchronized (durableLock) {
+          if (target > durablePos) {
+            durablePos = target;
+          }
+        }
+      }
+    } finally {
+      swapLock.unlockRead(stamp);
+    }
+  }
+
+  /**
+   * Set the durability policy for writes.
+   * @param mode durability mode
+   * @param periodMS flush period for PERIODIC; ignored otherwise
+   * @return this map
+   */
+  public synchronized ChiseledMap<K, V> setDurability(Durability mode, long periodMS) {
+    if (syncer != null) {
+      syncer.shutdown();
+      syncer = null;
+    }
+    if (mode == Durability.PERIODIC) {
+      syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "ChiseledMap-fsync");
+        t.setDaemon(true);
+        return t;
+      });
+      syncer.scheduleWithFixedDelay(() -> {
+        try {
+          flush();
+        } catch (IOException e) {
+          // next time, maybe.
+        }
+      }, periodMS, periodMS, TimeUnit.MILLISECONDS);
+    }
+    this.durability = mode;
+    return this;
+  }
+
+  private void awaitDurable(long end) throws IOException {
+    // group commit; whoever gets the force lock first forces for everyone who
+    // has appended so far, the rest usually find their write already covered.
+    if (durability != Durability.GROUP_COMMIT || durablePos >= end) {
+      return;
+    }
+    if (Thread.holdsLock(this)) {
+      // inside one of the synchronized compound ops; just do it.
+      flush();
+      return;
+    }
+    synchronized (forceLock) {
+      if (durablePos < end) {
+        flush();
+      }
+    }
+  }
+
+  /**
+   * Retrieve the value associated with a specified key.
+   * @param key key value
+   * @return value
+   * @throws IOException on exception
+   */
+  public V ioGet(Object key) throws IOException {
+    Entry<K, V> got = lookup(key);
+    return (got == null) ? null : got.getValue();
+  }
+
+  /**
+   * Clear a value.
+   * @param key key value
+   * @return prior value
+   * @throws IOException on exception
+   */
+  public V ioUnset(K key) throws IOException {
+    V p;
+    long end;
+    ByteBuffer rec = frame(key, null);
+    synchronized (this) {
+      p = ioGet(key);
+      if (p != null) {
+        append(rec, 1);
+        preserve(key);
+        map.remove(key);
+        expireAt(key, 0);
+        reindex(key, null);
+      } else if (expired(key)) {
+        // already reads as a delete on disk, just drop it
+        preserve(key);
+        map.remove(key);
+        expireAt(key, 0);
+        reindex(key, null);
+      }
+      end = currentWritePos;
+    }
+    awaitDurable(end);
+    return p;
+  }
+
+  /**
+   * Associate a key to a value
+   * @param key key value
+   * @param v value -- cannot be null.
+   * @return true if it replaced a value
+   * @throws IOException on exception
+   */
+  public boolean ioSet(K key, V v) throws IOException {
+    return ioSetUntil(key, v, 0L);
+  }
+
+  /**
+   * Associate a key to a value for a limited time. Once the time is up, reads
+   * no longer see it, and the expirer (or compaction, or the next open) drops
+   * it. Setting the key again, with or without a time to live, replaces the
+   * expiry.
+   * @param key key value
+   * @param v value -- cannot be null.
+   * @param ttl time to live
+   * @param units units of ttl
+   * @return true if it replaced a value
+   * @throws IOException on exception
+   */
+  public boolean ioSet(K key, V v, long ttl, TimeUnit units) throws IOException {
+    // toMillis() saturates; the add has to as well
+    long ms = units.toMillis(ttl);
+    long now = System.currentTimeMillis();
+    long at = (ms > 0 && ms > Long.MAX_VALUE - now) ? Long.MAX_VALUE : now + ms;
+    return ioSetUntil(key, v, Math.max(1L, at));
+  }
+
+  private boolean ioSetUntil(K key, V v, long expiresAt) throws IOException {
+    Objects.requireNonNull(v);
+    boolean ret;
+    long end;
+    ByteBuffer rec = frame(key, v, expiresAt);
+    synchronized (this) {
+      long newAddr = append(rec, 1);
+      preserve(key);
+      ret = map.put(key, newAddr) != null;
+      expireAt(key, expiresAt);
+      reindex(key, v);
+      end = currentWritePos;
+    }
+    awaitDurable(end);
+    return ret;
+  }
+
+  private void expireAt(K key, long at) {
+    // under the monitor, or during open. 0 means never.
+    if (at == 0 && expiries.isEmpty()) {
+      return;
+    }
+    Long prior = (at == 0) ? expiries.remove(key) : expiries.put(key, at);
+    if (prior != null) {
+      timeline.remove(new Expiring<>(prior, key));
+    }
+    if (at != 0) {
+      timeline.add(new Expiring<>(at, key));
+    }
+  }
+
+  private boolean expired(Object key) {
+    if (expiries.isEmpty()) {
+      return false;
+    }
+    Long at = expiries.get(key);
+    return at != null && at <= System.currentTimeMillis();
+  }
+
+  /**
+   * Drop every entry whose time to live has passed from the index, oldest
+   * first, off the time ordered expiry index. No tombstones are written; an
+   * expired record reads as a delete on open anyway.
+   * @return number of entries dropped
+   */
+  public int expire() {
+    int ret = 0;
+    long now = System.currentTimeMillis();
+    for (Iterator<Expiring<K>> it = timeline.iterator(); it.hasNext(); ) {
+      Expiring<K> e = it.next();
+      if (e.at > now) {
+        break;
+      }
+      synchronized (this) {
+        // unless it was set again meanwhile
+        Long at = expiries.get(e.key);
+        if (at != null && at == e.at) {
+          preserve(e.key);
+          map.remove(e.key);
+          expireAt(e.key, 0);
+          reindex(e.key, null);
+          ret++;
+        }
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Run expire() in the background every so often. 0 stops it.
+   * @param periodMS period in milliseconds
+   * @return this map
+   */
+  public synchronized ChiseledMap<K, V> setExpirer(long periodMS) {
+    if (expirer != null) {
+      expirer.shutdown();
+      expirer = null;
+    }
+    if (periodMS > 0) {
+      expirer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "ChiseledMap-expirer");
+        t.setDaemon(true);
+        return t;
+      });
+      expirer.scheduleWithFixedDelay(this::expire, periodMS, periodMS, TimeUnit.MILLISECONDS);
+    }
+    return this;
+  }
+
+  private static final class Expiring<KK> {
+    private final long at;
+    private final KK key;
+
+    Expiring(long at, KK key) {
+      this.at = at;
+      this.key = key;
+    }
+  }
+
+  public V ioGetSet(K key, V v) throws IOException {
+    Objects.requireNonNull(v);
+    V ret = null;
+    long end;
+    ByteBuffer rec = frame(key, v);
+    synchronized (this) {
+      Long addr = map.get(key);
+      if (addr != null && !expired(key)) {
+        ret = fetch(addr).getValue();
+      }
+      long newAddr = append(rec, 1);
+      preserve(key);
+      map.put(key, newAddr);
+      expireAt(key, 0);
+      reindex(key, v);
+      end = currentWritePos;
+    }
+    awaitDurable(end);
+    return ret;
+  }
+
+  /**
+   * Start a write batch. Mutations are encoded as they are added, outside of
+   * any lock, then commit() appends them as one framed record with a single
+   * crc, and applies them to the index all at once. On restart, a batch is
+   * either all there, or not at all.
+   * @return new batch
+   */
+  public WriteBatch batch() {
+    return new WriteBatch();
+  }
+
+  /**
+   * Atomic multi key write. Not thread safe itself; one thread builds a batch.
+   */
+  public class WriteBatch {
+    private final ArrayList<K> keys = new ArrayList<>();
+    private final ArrayList<Integer> offsets = new ArrayList<>();
+    private final ArrayList<V> values = new ArrayList<>();
+    private ByteBuffer body = ByteBuffer.allocate(4 * 1024);
+    private boolean done = false;
+
+    private WriteBatch() {
+    }
+
+    /**
+     * Add a put to this batch.
+     * @param key key
+     * @param v value, cannot be null
+     * @return this batch
+     * @throws IOException on encoding exception
+     */
+    public WriteBatch put(K key, V v) throws IOException {
+      return add(key, Objects.requireNonNull(v));
+    }
+
+    /**
+     * Add a remove to this batch.
+     * @param key key
+     * @return this batch
+     * @throws IOException on encoding exception
+     */
+    public WriteBatch remove(K key) throws IOException {
+      return add(key, null);
+    }
+
+    private WriteBatch add(K key, V v) throws IOException {
+      if (done) {
+        throw new IllegalStateException("Batch already committed");
+      }
+      ByteBuffer payload = encoder.encode(key, v);
+      int need = Integer.BYTES + payload.remaining();
+      if (body.remaining() < need) {
+        ByteBuffer nb = ByteBuffer.allocate(Math.max(body.capacity() * 2, body.position() + need));
+        body.flip();
+        body = nb.put(body);
+      }
+      keys.add(key);
+      offsets.add(body.position());
+      values.add(v);
+      body.putInt(payload.remaining());
+      body.put(payload);
+      return this;
+    }
+
+    /**
+     * Number of mutations in this batch.
+     * @return size
+     */
+    public int size() {
+      return keys.size();
+    }
+
+    /**
+     * Append the batch and apply it. A batch can only be committed once.
+     * @throws IOException on exception
+     */
+    public void commit() throws IOException {
+      if (done) {
+        throw new IllegalStateException("Batch already committed");
+      }
+      done = true;
+      if (keys.isEmpty()) {
+        return;
+      }
+      ByteBuffer rec = frame();
+      long end;
+      synchronized (ChiseledMap.this) {
+        end = apply(rec);
+      }
+      awaitDurable(end);
+    }
+
+    private ByteBuffer frame() throws IOException {
+      body.flip();
+      return ChiseledMap.frame(body, FLAG_BATCH, DIGEST.get());
+    }
+
+    private long apply(ByteBuffer rec) throws IOException {
+      // under the monitor. members are addressed directly, just past their
+      // enclosing length word
+      long base = append(rec, keys.size()) + Integer.BYTES;
+      for (int i = 0; i < keys.size(); i++) {
+        preserve(keys.get(i));
+        if (values.get(i) == null) {
+          map.remove(keys.get(i));
+        } else {
+          map.put(keys.get(i), base + offsets.get(i));
+        }
+        expireAt(keys.get(i), 0);
+        reindex(keys.get(i), values.get(i));
+      }
+      return currentWritePos;
+    }
   }
 
-  @Override
-  public int size() {
-    return map.size();
+  /**
+   * Start an optimistic transaction. Reads go straight to the map, each one
+   * noting the key's record address as its version; writes are buffered in
+   * a batch. commit() takes the monitor only long enough to check that no
+   * version read has changed, then appends the writes as one batch record.
+   * Transactions only conflict on keys they actually touched.
+   * @return new transaction
+   */
+  public Transaction transaction() {
+    return new Transaction();
   }
 
   /**
-   * Entry iterator. Necessary slushy with respect to concurrency.
-   * @return iterator of entries.
+   * Optimistic multi key transaction. Not thread safe itself; one thread
+   * runs a transaction, and it commits at most once.
    */
-  public Iterable<Entry<K, V>> entries() {
-    return () -> new Iterator<Entry<K, V>>() {
-      final Iterator<Entry<K, Long>> base = map.entrySet().iterator();
+  public final class Transaction {
+    private final long gen = generation;
+    private final TreeMap<K, Long> versions = new TreeMap<>(comp);
+    private final TreeMap<K, V> seen = new TreeMap<>(comp);
+    private final WriteBatch batch = new WriteBatch();
+    private boolean done = false;
 
-      @Override
-      public boolean hasNext() {
-        return base.hasNext();
+    private Transaction() {
+    }
+
+    /**
+     * Read a key, seeing this transaction's own writes. The first read of a
+     * key fixes the value seen for the rest of the transaction.
+     * @param key key
+     * @return value, or null
+     * @throws IOException on exception
+     */
+    public V get(K key) throws IOException {
+      if (seen.containsKey(key)) {
+        return seen.get(key);
       }
+      Entry<K, V> got = stable(() -> {
+        Long addr = map.get(key);
+        boolean live = addr != null && !expired(key);
+        versions.putIfAbsent(key, live ? addr : -1L);
+        return live ? fetch(addr) : null;
+      });
+      V ret = (got == null) ? null : got.getValue();
+      seen.put(key, ret);
+      return ret;
+    }
 
-      @Override
-      public Entry<K, V> next() {
-        Entry<K, Long> n = base.next();
-        try {
-          return fetch(n.getValue(), false, null);
-        } catch (IOException e) {
-          throw new RuntimeIOException(e);
+    /**
+     * Buffer a put.
+     * @param key key
+     * @param v value, cannot be null
+     * @return this transaction
+     * @throws IOException on encoding exception
+     */
+    public Transaction put(K key, V v) throws IOException {
+      batch.put(key, v);
+      seen.put(key, v);
+      return this;
+    }
+
+    /**
+     * Buffer a remove.
+     * @param key key
+     * @return this transaction
+     * @throws IOException on encoding exception
+     */
+    public Transaction remove(K key) throws IOException {
+      batch.remove(key);
+      seen.put(key, null);
+      return this;
+    }
+
+    /**
+     * Validate the reads, and if none changed, apply the writes as one
+     * atomic batch. A compaction since the transaction started moves every
+     * address, so it counts as a conflict.
+     * @return true if committed, false on conflict; retry with a new transaction
+     * @throws IOException on exception
+     */
+    public boolean commit() throws IOException {
+      if (done) {
+        throw new IllegalStateException("Transaction already finished");
+      }
+      done = true;
+      ByteBuffer rec = batch.size() == 0 ? null : batch.frame();
+      long end;
+      synchronized (ChiseledMap.this) {
+        if (gen != generation) {
+          return false;
+        }
+        for (Entry<K, Long> e : versions.entrySet()) {
+          Long addr = map.get(e.getKey());
+          long now = (addr == null || expired(e.getKey())) ? -1L : addr;
+          if (now != e.getValue()) {
+            return false;
+          }
+        }
+        if (rec == null) {
+          return true;
         }
+        end = batch.apply(rec);
       }
-    };
+      awaitDurable(end);
+      return true;
+    }
   }
 
-  @Override
-  public Set<Entry<K, V>> entrySet() {
-    return new AbstractSet<Entry<K, V>>() {
-      @Override
-      public Iterator<Entry<K, V>> iterator() {
-        return entries().iterator();
-      }
+  /**
+   * One logged mutation, as read by a ChangeCursor.
+   * @param <KK> key type
+   * @param <VV> value type
+   */
+  public static final class Change<KK, VV> {
+    private final long address;
+    private final KK key;
+    private final VV value;
 
-      @Override
-      public int size() {
-        return ChiseledMap.this.size();
-      }
+    Change(long address, KK key, VV value) {
+      this.address = address;
+      this.key = key;
+      this.value = value;
+    }
 
-      @Override
-      public boolean add(Entry<K, V> entry) {
-        return ChiseledMap.this.putIfAbsent(entry.getKey(), entry.getValue()) == null;
-      }
+    /**
+     * Address of the record in the log.
+     * @return address
+     */
+    public long getAddress() {
+      return address;
+    }
 
-      @Override
-      public boolean remove(Object o) {
-        return ChiseledMap.this.remove(o) != null;
-      }
+    public KK getKey() {
+      return key;
+    }
 
-      @Override
-      public void clear() {
-        ChiseledMap.this.clear();
+    /**
+     * Value set, or null for a removal.
+     * @return value
+     */
+    public VV getValue() {
+      return value;
+    }
+
+    public boolean isRemove() {
+      return value == null;
+    }
+
+    @Override
+    public String toString() {
+      return "Change{" + address + ": " + key + "=" + value + '}';
+    }
+  }
+
+  /**
+   * Address of the first record in any log.
+   * @return start address
+   */
+  public static long logStart() {
+    return HDR.length;
+  }
+
+  /**
+   * Epoch of this log. Compaction rewrites every address, so it moves the log
+   * to a new epoch; log shipping refuses to mix epochs. Kept in the file
+   * header.
+   * @return epoch
+   */
+  public long logEpoch() {
+    return epoch;
+  }
+
+  /**
+   * Address just past the last record appended; a cursor opened here sees
+   * only changes from now on.
+   * @return end address
+   */
+  public long logEnd() {
+    return currentWritePos;
+  }
+
+  /**
+   * Open a cursor over the log, starting at a record address: logStart(),
+   * logEnd(), or a position saved from an earlier cursor. Compaction rewrites
+   * every address, so a cursor which sees a compaction fails, and the reader
+   * has to start over from a full scan.
+   * @param from address of the first record to read
+   * @return change cursor
+   * @throws IOException if from is out of range
+   */
+  public ChangeCursor changes(long from) throws IOException {
+    if (from < HDR.length || from > currentWritePos) {
+      throw new IOException("Bad log address: " + from);
+    }
+    return new ChangeCursor(from);
+  }
+
+  /**
+   * Pull cursor over the mutations in the log, in the order they were
+   * appended. Batches come back whole. Expiry writes nothing, so expired
+   * entries are not reported. Not thread safe itself.
+   */
+  public final class ChangeCursor {
+    private final long gen = generation;
+    private long pos;
+
+    private ChangeCursor(long pos) {
+      this.pos = pos;
+    }
+
+    /**
+     * Address of the next record this cursor will read; save it to resume later.
+     * @return position
+     */
+    public long position() {
+      return pos;
+    }
+
+    /**
+     * Read whatever has been appended since the last poll.
+     * @param max stop after at least this many changes
+     * @return changes, maybe empty
+     * @throws IOException on exception, or if the log was compacted
+     */
+    public List<Change<K, V>> poll(int max) throws IOException {
+      return stable(() -> {
+        if (gen != generation) {
+          throw new IOException("Log compacted, cursor is stale");
+        }
+        List<Change<K, V>> ret = new ArrayList<>();
+        int[] word = new int[1];
+        List<Entry<K, V>> got = new ArrayList<>();
+        List<Long> addrs = new ArrayList<>();
+        long at = pos;
+        long end = currentWritePos;
+        while (at < end && ret.size() < max) {
+          byte[] r = readBody(at, word);
+          checkDigest(r);
+          got.clear();
+          addrs.clear();
+          decodeRecord(at, word[0], r, got, addrs);
+          for (int i = 0; i < got.size(); i++) {
+            ret.add(new Change<>(addrs.get(i), got.get(i).getKey(), got.get(i).getValue()));
+          }
+          at = at + r.length + Integer.BYTES;
+        }
+        pos = at;
+        return ret;
+      });
+    }
+
+    /**
+     * Read whatever has been appended since the last poll, waiting up to the
+     * timeout for something to show up.
+     * @param max stop after at least this many changes
+     * @param timeout how long to wait
+     * @param units units of timeout
+     * @return changes, empty if it timed out
+     * @throws IOException on exception, or if the log was compacted
+     * @throws InterruptedException if interrupted
+     */
+    public List<Change<K, V>> poll(int max, long timeout, TimeUnit units) throws IOException, InterruptedException {
+      long deadline = System.nanoTime() + units.toNanos(timeout);
+      synchronized (feedLock) {
+        tailing++;
       }
-    };
+      try {
+        for (; ; ) {
+          List<Change<K, V>> ret = poll(max);
+          long left = deadline - System.nanoTime();
+          if (!ret.isEmpty() || left <= 0) {
+            return ret;
+          }
+          synchronized (feedLock) {
+            if (currentWritePos == pos) {
+              TimeUnit.NANOSECONDS.timedWait(feedLock, left);
+            }
+          }
+        }
+      } finally {
+        synchronized (feedLock) {
+          tailing--;
+        }
+      }
+    }
   }
 
   /**
-   * Flush any buffered changes to disk, fsync.
-   * @throws IOException If you get an IOException, literally no guarantees
-   * can be made about the on disk state of the data.
+   * Make this map a log shipping follower, or not. A follower only changes
+   * through applyLog(); local writes and compaction fail. Reads are fine.
+   * @param follower true for follower mode
+   * @return this map
    */
-  public void flush() throws IOException {
-    flushBuffer();
-    fc.force(false);
+  public ChiseledMap<K, V> setFollower(boolean follower) {
+    this.follower = follower;
+    return this;
+  }
+
+  public boolean isFollower() {
+    return follower;
   }
 
   /**
-   * Retrieve the value associated with a specified key.
-   * @param key key value
-   * @return value
-   * @throws IOException on exception
+   * A chunk of shipped log: raw records from one log epoch, starting at an
+   * address. Serializable, to go over the wire as is.
    */
-  public V ioGet(Object key) throws IOException {
-    Long addr = map.get(key);
-    if (addr != null) {
-      return fetch(addr, false, null).getValue();
+  public static final class LogChunk implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final long epoch;
+    private final long from;
+    private final byte[] records;
+
+    public LogChunk(long epoch, long from, byte[] records) {
+      this.epoch = epoch;
+      this.from = from;
+      this.records = records;
+    }
+
+    public long getEpoch() {
+      return epoch;
+    }
+
+    public long getFrom() {
+      return from;
+    }
+
+    public byte[] getRecords() {
+      return records;
+    }
+
+    public boolean isEmpty() {
+      return records.length == 0;
     }
-    return null;
   }
 
   /**
-   * Clear a value.
-   * @param key key value
-   * @return prior value
+   * Primary side of log shipping: raw log bytes, whole records only, starting
+   * at a follower's logEnd(). The follower's logEpoch() has to match, since a
+   * compaction since then rewrote every address; reading from logStart() is
+   * fine in any epoch, which is how a new or reset follower starts. Records
+   * are CRC checked on the way out as well.
+   * @param epoch the follower's log epoch
+   * @param from address to read from
+   * @param maxBytes read about this much; at least one record if any
+   * @return raw records, maybe empty, tagged with this log's epoch
+   * @throws LogEpochException if the epochs differ
    * @throws IOException on exception
    */
-  public synchronized V ioUnset(K key) throws IOException {
-    V p = ioGet(key);
-    if (p != null) {
-      append(key, null);
-      map.remove(key);
-    }
-    return p;
+  public LogChunk readLog(long epoch, long from, int maxBytes) throws IOException {
+    return stable(() -> {
+      long end = currentWritePos;
+      long ours = this.epoch;
+      if (epoch != ours && from != HDR.length) {
+        throw new LogEpochException("Log epoch: " + epoch + ", primary is at: " + ours);
+      }
+      if (from < HDR.length || from > end) {
+        throw new IOException("Bad log address: " + from + ", log ends at: " + end);
+      }
+      ByteArrayOutputStream baos = new ByteArrayOutputStream(Math.min(maxBytes, 64 * 1024));
+      DataOutputStream dos = new DataOutputStream(baos);
+      int[] word = new int[1];
+      for (long at = from; at < end && (baos.size() == 0 || baos.size() < maxBytes); ) {
+        byte[] r = readBody(at, word);
+        checkDigest(r);
+        if (baos.size() > 0 && baos.size() + Integer.BYTES + r.length > maxBytes) {
+          break;
+        }
+        dos.writeInt(word[0]);
+        dos.write(r);
+        at = at + Integer.BYTES + r.length;
+      }
+      return new LogChunk(ours, from, baos.toByteArray());
+    });
   }
 
   /**
-   * Associate a key to a value
-   * @param key key value
-   * @param v value -- cannot be null.
-   * @return true if it replaced a value
+   * Follower side of log shipping: append raw records from the primary's
+   * readLog() and apply them to the index. Records are CRC checked and decoded
+   * first; a bad chunk is rejected whole. The chunk has to start at this
+   * map's logEnd(), in its epoch; an empty follower takes on the epoch of
+   * the first chunk it gets.
+   * @param chunk chunk from readLog()
+   * @return new logEnd()
+   * @throws LogEpochException if the epochs differ
    * @throws IOException on exception
    */
-  public synchronized boolean ioSet(K key, V v) throws IOException {
-    Objects.requireNonNull(v);
-    long newAddr = append(key, v);
-    return map.put(key, newAddr) != null;
+  public long applyLog(LogChunk chunk) throws IOException {
+    long at = chunk.from;
+    byte[] records = chunk.records;
+    List<Entry<K, V>> got = new ArrayList<>();
+    List<Long> addrs = new ArrayList<>();
+    List<Long> expires = new ArrayList<>();
+    List<Integer> starts = new ArrayList<>();
+    List<Integer> counts = new ArrayList<>();
+    ByteBuffer b = ByteBuffer.wrap(records);
+    try {
+      while (b.hasRemaining()) {
+        int word = b.getInt();
+        int len = word & LEN_MASK;
+        byte[] r = new byte[len + Integer.BYTES];
+        b.get(r);
+        checkDigest(r);
+        int before = got.size();
+        decodeRecord(at + b.position() - r.length - Integer.BYTES, word, r, got, addrs);
+        long expiresAt = ((word & FLAG_TTL) != 0) ? ByteBuffer.wrap(r).getLong(0) : 0L;
+        for (int i = before; i < got.size(); i++) {
+          expires.add(expiresAt);
+        }
+        starts.add(b.position() - r.length - Integer.BYTES);
+        counts.add(got.size() - before);
+      }
+    } catch (RuntimeException e) {
+      throw new IOException("Bad shipped log", e);
+    }
+    long end;
+    synchronized (this) {
+      if (chunk.epoch != epoch) {
+        if (currentWritePos != HDR.length) {
+          throw new LogEpochException("Shipped log epoch: " + chunk.epoch + ", log is at: " + epoch);
+        }
+        epoch = chunk.epoch;
+        writeHeader();
+      }
+      if (at != currentWritePos) {
+        throw new IOException("Shipped log starts at: " + at + ", log ends at: " + currentWritePos);
+      }
+      long now = System.currentTimeMillis();
+      for (int i = 0; i < starts.size(); i++) {
+        int next = (i + 1 < starts.size()) ? starts.get(i + 1) : records.length;
+        appendRecord(ByteBuffer.wrap(records, starts.get(i), next - starts.get(i)), counts.get(i));
+      }
+      for (int i = 0; i < got.size(); i++) {
+        K key = got.get(i).getKey();
+        index(key, got.get(i).getValue() == null ? null : addrs.get(i), expires.get(i), now);
+        reindex(key, map.containsKey(key) ? got.get(i).getValue() : null);
+      }
+      end = currentWritePos;
+    }
+    awaitDurable(end);
+    return end;
   }
 
-  public synchronized V ioGetSet(K key, V v) throws IOException {
-    Objects.requireNonNull(v);
-    Long addr = map.get(key);
-    V ret = null;
-    if (addr != null) {
-      ret = fetch(addr, false, null).getValue();
+  /**
+   * Add a secondary index over values. The extractor maps a value to its
+   * index key (or null, to leave it out); the index maps index keys to the
+   * primary keys holding them, and is kept up to date by every write from
+   * then on. It is built by a scan of the map, holding off writers while
+   * it runs. Lives in memory only; add it again after reopening.
+   * @param extractor value to index key
+   * @param comparator index key order, null for natural order
+   * @param <I> index key type
+   * @return the index
+   */
+  @SuppressWarnings("unchecked")
+  public synchronized <I> SecondaryIndex<I> addIndex(Function<? super V, ? extends I> extractor,
+                                                     Comparator<? super I> comparator) {
+    Comparator<? super I> c = (comparator == null) ? (a, b) -> ((Comparable<I>) a).compareTo(b) : comparator;
+    SecondaryIndex<I> ret = new SecondaryIndex<>(extractor, c);
+    for (Entry<K, V> e : entries()) {
+      ret.update(e.getKey(), e.getValue());
     }
-    long newAddr = append(key, v);
-    map.put(key, newAddr);
+    indexes.add(ret);
     return ret;
   }
 
   /**
-   * Copy only live entries to another file. Blocks writes to this map
-   * while snapshotting.
+   * Stop maintaining a secondary index.
+   * @param index index to drop
+   */
+  public synchronized void removeIndex(SecondaryIndex<?> index) {
+    indexes.remove(index);
+    index.clear();
+  }
+
+  private void reindex(K key, V v) {
+    // under the monitor; null for a removal
+    for (SecondaryIndex<?> idx : indexes) {
+      idx.update(key, v);
+    }
+  }
+
+  /**
+   * Secondary index: index key to the primary keys whose values have it.
+   * Held in memory, ordered by index key, so exact and range lookups only go
+   * to disk for the values themselves.
+   * @param <I> index key type
+   */
+  public final class SecondaryIndex<I> {
+    private final Function<? super V, ? extends I> extractor;
+    private final Comparator<? super I> comparator;
+    private final ConcurrentSkipListMap<I, ConcurrentSkipListSet<K>> byIndex;
+    private final ConcurrentSkipListMap<K, I> byKey;
+
+    private SecondaryIndex(Function<? super V, ? extends I> extractor, Comparator<? super I> comparator) {
+      this.extractor = extractor;
+      this.comparator = comparator;
+      this.byIndex = new ConcurrentSkipListMap<>(comparator);
+      this.byKey = new ConcurrentSkipListMap<>(comp);
+    }
+
+    private void update(K key, V v) {
+      I prior = byKey.remove(key);
+      if (prior != null) {
+        ConcurrentSkipListSet<K> keys = byIndex.get(prior);
+        keys.remove(key);
+        if (keys.isEmpty()) {
+          byIndex.remove(prior);
+        }
+      }
+      I ik = (v == null) ? null : extractor.apply(v);
+      if (ik != null) {
+        byKey.put(key, ik);
+        byIndex.computeIfAbsent(ik, k -> new ConcurrentSkipListSet<>(comp)).add(key);
+      }
+    }
+
+    private void clear() {
+      byIndex.clear();
+      byKey.clear();
+    }
+
+    /**
+     * Number of distinct index keys.
+     * @return size
+     */
+    public int size() {
+      return byIndex.size();
+    }
+
+    /**
+     * Primary keys over a range of index keys, in index key then primary key
+     * order, straight from memory.
+     * @param from low index key, null for unbounded
+     * @param fromInclusive true if from is included
+     * @param to high index key, null for unbounded
+     * @param toInclusive true if to is included
+     * @return primary keys
+     */
+    public Iterable<K> keys(I from, boolean fromInclusive, I to, boolean toInclusive) {
+      ConcurrentNavigableMap<I, ConcurrentSkipListSet<K>> m = byIndex;
+      if (from != null && to != null) {
+        m = m.subMap(from, fromInclusive, to, toInclusive);
+      } else if (from != null) {
+        m = m.tailMap(from, fromInclusive);
+      } else if (to != null) {
+        m = m.headMap(to, toInclusive);
+      }
+      Collection<ConcurrentSkipListSet<K>> sets = m.values();
+      return () -> sets.stream().flatMap(Set::stream).filter(k -> !expired(k)).iterator();
+    }
+
+    /**
+     * Primary keys with exactly this index key.
+     * @param ik index key
+     * @return primary keys
+     */
+    public Iterable<K> keys(I ik) {
+      return keys(ik, true, ik, true);
+    }
+
+    /**
+     * Entries over a range of index keys, read SCAN_CHUNK at a time in file
+     * order like entries(). An entry changed since it was indexed is checked
+     * against the range again, so only matching values come back.
+     * @param from low index key, null for unbounded
+     * @param fromInclusive true if from is included
+     * @param to high index key, null for unbounded
+     * @param toInclusive true if to is included
+     * @return entries
+     */
+    public Iterable<Entry<K, V>> entries(I from, boolean fromInclusive, I to, boolean toInclusive) {
+      return () -> {
+        Iterator<Entry<K, V>> it = chunked(keys(from, fromInclusive, to, toInclusive).iterator());
+        Iterable<Entry<K, V>> all = () -> it;
+        return StreamSupport.stream(all.spliterator(), false)
+          .filter(e -> within(extractor.apply(e.getValue()), from, fromInclusive, to, toInclusive))
+          .iterator();
+      };
+    }
+
+    /**
+     * Entries with exactly this index key.
+     * @param ik index key
+     * @return entries
+     */
+    public Iterable<Entry<K, V>> entries(I ik) {
+      return entries(ik, true, ik, true);
+    }
+
+    private boolean within(I ik, I from, boolean fromInclusive, I to, boolean toInclusive) {
+      if (ik == null) {
+        return false;
+      }
+      if (from != null) {
+        int c = comparator.compare(ik, from);
+        if (c < 0 || (c == 0 && !fromInclusive)) {
+          return false;
+        }
+      }
+      if (to != null) {
+        int c = comparator.compare(ik, to);
+        return c < 0 || (c == 0 && toInclusive);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * For tests; lower the putAll() batch size from PUT_ALL_CHUNK.
+   * @param bytes bytes buffered per batch
+   * @return this map
+   */
+  ChiseledMap<K, V> putAllChunk(int bytes) {
+    this.putAllChunk = bytes;
+    return this;
+  }
+
+  /**
+   * Written as batches of about PUT_ALL_CHUNK bytes each. Each batch is
+   * atomic; the whole putAll() is not.
+   * @param m mappings
+   */
+  @Override
+  public void putAll(Map<? extends K, ? extends V> m) {
+    try {
+      WriteBatch b = batch();
+      for (Entry<? extends K, ? extends V> e : m.entrySet()) {
+        b.put(e.getKey(), e.getValue());
+        if (b.body.position() >= putAllChunk) {
+          b.commit();
+          b = batch();
+        }
+      }
+      b.commit();
+    } catch (IOException e) {
+      throw new RuntimeIOException(e);
+    }
+  }
+
+  /**
+   * Copy only live entries to another file, as of now. Writes carry on while
+   * it copies; see view().
    * @param f dest file
    * @return new TinyKVMap
    * @throws IOException on exception
    */
-  public synchronized ChiseledMap<K, V> snapshot(File f) throws IOException {
-    ChiseledMap<K, V> ret = new ChiseledMap<>(f, OpenOption.MUST_BE_NEW, comp, encoder, decoder);
-    for (Entry<K, V> ent : entries()) {
-      ret.ioSet(ent.getKey(), ent.getValue());
+  public ChiseledMap<K, V> snapshot(File f) throws IOException {
+    try (Snapshot view = view()) {
+      view.export(f);
     }
+    return new ChiseledMap<>(f, OpenOption.MUST_EXIST, comp, encoder, decoder);
+  }
+
+  /**
+   * Open a read only, point in time view of the map. Nothing is copied up
+   * front: records in the log never change, so the view reads the live index,
+   * except for keys written since it was opened, whose prior addresses are set
+   * aside as they change. That costs writers a little while views are open,
+   * and compaction, which moves every address, waits until they are all
+   * closed. Close views promptly.
+   * @return open view
+   */
+  public synchronized Snapshot view() {
+    Snapshot ret = new Snapshot();
+    views.add(ret);
     return ret;
   }
 
+  private void preserve(K key) {
+    // under the monitor, before any index change: open views keep the address
+    // the key had when they were opened.
+    if (!views.isEmpty()) {
+      Long prior = liveAddr(key);
+      for (Snapshot v : views) {
+        v.before.putIfAbsent(key, (prior == null) ? -1L : prior);
+      }
+    }
+  }
+
+  /**
+   * Point in time, read only view of the map. Thread safe. Reads and scans
+   * work as on the map itself.
+   */
+  public final class Snapshot implements AutoCloseable {
+    private final ConcurrentSkipListMap<K, Long> before = new ConcurrentSkipListMap<>(comp);
+
+    private Snapshot() {
+    }
+
+    private Long addr(Object key) {
+      // the index is changed after the prior address is set aside, so if the
+      // live read saw a change, the second look finds the prior one.
+      Long addr = liveAddr(key);
+      Long prior = before.get(key);
+      if (prior != null) {
+        return (prior < 0) ? null : prior;
+      }
+      return addr;
+    }
+
+    /**
+     * Value as of when the view was opened.
+     * @param key key
+     * @return value or null
+     * @throws IOException on exception
+     */
+    public V get(K key) throws IOException {
+      return stable(() -> {
+        Long addr = addr(key);
+        return (addr == null) ? null : fetch(addr).getValue();
+      });
+    }
+
+    public boolean containsKey(K key) {
+      return addr(key) != null;
+    }
+
+    /**
+     * Keys as of when the view was opened, in order; memory only.
+     * @return keys
+     */
+    public Iterable<K> keys() {
+      return () -> {
+        Iterator<K> it = merged();
+        Iterable<K> all = () -> it;
+        return StreamSupport.stream(all.spliterator(), false).filter(this::containsKey).iterator();
+      };
+    }
+
+    /**
+     * Entries as of when the view was opened, in key order, read SCAN_CHUNK at a
+     * time in file order.
+     * @return entries
+     */
+    public Iterable<Entry<K, V>> entries() {
+      return () -> chunked(merged(), this::addr);
+    }
+
+    /**
+     * Write the view out as a new, compact ChiseledMap file. Records are copied
+     * raw; writers carry on meanwhile.
+     * @param f new file; must not exist
+     * @return entries written
+     * @throws IOException on exception
+     */
+    public long export(File f) throws IOException {
+      // anything the view can see is below the write position now
+      flushBuffer();
+      try (FileChannel out = FileChannel.open(f.toPath(), CREATE_NEW, READ, WRITE)) {
+        // different addresses, so a different log
+        Compactor c = new Compactor(out, newEpoch());
+        CRC32 crc = new CRC32();
+        for (Iterator<K> it = merged(); it.hasNext(); ) {
+          Long addr = addr(it.next());
+          if (addr != null) {
+            c.add(readRecord(addr, crc));
+          }
+        }
+        c.drain();
+        out.force(false);
+        return c.records;
+      }
+    }
+
+    /**
+     * Run export() on a background thread.
+     * @param f new file; must not exist
+     * @return future entries written
+     */
+    public Future<Long> exportInBackground(File f) {
+      FutureTask<Long> ret = new FutureTask<>(() -> export(f));
+      Thread t = new Thread(ret, "ChiseledMap-export");
+      t.setDaemon(true);
+      t.start();
+      return ret;
+    }
+
+    private Iterator<K> merged() {
+      // live keys, plus any removed since the view opened, in key order
+      Iterator<K> live = map.keySet().iterator();
+      Iterator<K> prior = before.keySet().iterator();
+      return new Iterator<K>() {
+        private K nextLive = live.hasNext() ? live.next() : null;
+        private K nextPrior = prior.hasNext() ? prior.next() : null;
+
+        @Override
+        public boolean hasNext() {
+          return nextLive != null || nextPrior != null;
+        }
+
+        @Override
+        public K next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          int c = (nextLive == null) ? 1 : (nextPrior == null) ? -1 : comp.compare(nextLive, nextPrior);
+          K ret = (c <= 0) ? nextLive : nextPrior;
+          if (c <= 0) {
+            nextLive = live.hasNext() ? live.next() : null;
+          }
+          if (c >= 0) {
+            nextPrior = prior.hasNext() ? prior.next() : null;
+          }
+          return ret;
+        }
+      };
+    }
+
+    /**
+     * Release the view.
+     */
+    @Override
+    public void close() {
+      views.remove(this);
+      before.clear();
+    }
+  }
+
   @Override
   public boolean containsKey(Object key) {
-    return map.containsKey(key);
+    return map.containsKey(key) && !expired(key);
   }
 
   @Override
@@ -553,6 +3206,22 @@ public class ChiseledMap<K, V> extends AbstractMap<K, V> implements ConcurrentMa
     }
   }
 
+  /**
+   * Unchecked verson of ioSet() with a time to live.
+   * @param key key value
+   * @param value value to associate with key
+   * @param ttl time to live
+   * @param units units of ttl
+   * @return true if it replaced a value
+   */
+  public boolean set(K key, V value, long ttl, TimeUnit units) {
+    try {
+      return ioSet(key, value, ttl, units);
+    } catch (IOException e) {
+      throw new RuntimeIOException(e);
+    }
+  }
+
   @Override
   public V put(K key, V value) {
     try {
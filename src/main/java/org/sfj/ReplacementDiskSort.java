@@ -17,17 +17,34 @@ package org.sfj;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
-import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 import static java.util.Collections.singletonList;
 
@@ -41,6 +58,8 @@ import static java.util.Collections.singletonList;
  * that make arbitrary iterators and appenders, which are then used read and write
  * your subclass of Element. SO if you have binary ints, fine. Strings, fine. Just
  * provide the appender/iterators to make it happen.
+ * <p>For fixed width binary records, Binary has ready made iterators and
+ * appenders, and LongRecordSort sorts long keyed records with no Elements at all.
  * @param <E> element subclass
  *
  * @author cschanck
@@ -53,13 +72,24 @@ public class ReplacementDiskSort<E extends ReplacementDiskSort.Element> {
     private final List<File> srcFiles;
     private final List<File> destFiles;
     private final List<Long> runCounts;
+    private final List<Long> workerTimesMS;
 
     public PassInfo(int pass, List<File> srcFiles, List<File> destFiles, List<Long> destCounts, long runTimeMS) {
+      this(pass, srcFiles, destFiles, destCounts, runTimeMS, singletonList(runTimeMS));
+    }
+
+    public PassInfo(int pass,
+                    List<File> srcFiles,
+                    List<File> destFiles,
+                    List<Long> destCounts,
+                    long runTimeMS,
+                    List<Long> workerTimesMS) {
       this.pass = pass;
       this.srcFiles = srcFiles;
       this.destFiles = destFiles;
       this.runCounts = destCounts;
       this.runTimeMS = runTimeMS;
+      this.workerTimesMS = workerTimesMS;
     }
 
     public int getPass() {
@@ -82,6 +112,14 @@ public class ReplacementDiskSort<E extends ReplacementDiskSort.Element> {
       return runCounts;
     }
 
+    /**
+     * Time each worker thread spent in this pass; one entry if single threaded.
+     * @return per worker times
+     */
+    public List<Long> getWorkerTimesMS() {
+      return workerTimesMS;
+    }
+
     @Override
     public String toString() {
       return "PassInfo{" +
@@ -95,6 +133,8 @@ public class ReplacementDiskSort<E extends ReplacementDiskSort.Element> {
              destFiles +
              ", runCounts=" +
              runCounts +
+             ", workerTimesMS=" +
+             workerTimesMS +
              '}';
     }
   }
@@ -176,8 +216,14 @@ public class ReplacementDiskSort<E extends ReplacementDiskSort.Element> {
   private final IterMaker<E> iteratorMaker;
   private final AtomicInteger filenameCounter = new AtomicInteger(0);
   protected File workDirectory;
-  private final List<PassInfo> runPassInfo = new ArrayList<>();
+  private final List<PassInfo> runPassInfo = Collections.synchronizedList(new ArrayList<>());
   private PrintStream verbose = System.out;
+  private int runThreads = 1;
+  private int mergeThreads = 1;
+  private int asyncBlock = 0;
+  private ExecutorService ioPool = null;
+  private final Object ioLock = new Object();
+  private static final int FAN_OUT_BLOCK = 1024;
 
   /**
    * Constructor.
@@ -243,6 +289,73 @@ public class ReplacementDiskSort<E extends ReplacementDiskSort.Element> {
     return this;
   }
 
+  /**
+   * Generate the initial runs with this many threads. The source is still read
+   * by one iterator, but elements are dealt out in blocks to each worker, which
+   * runs replacement selection with its own heap of maxElementsForRuns/threads
+   * elements into its own run files. Same memory, so shorter and more runs,
+   * but run generation is no longer bound by a single core. The merge passes
+   * are unchanged.
+   * @param runThreads threads for run generation; 1 is the classic single heap
+   * @return this
+   */
+  public ReplacementDiskSort<E> setRunThreads(int runThreads) {
+    this.runThreads = Math.max(1, runThreads);
+    return this;
+  }
+
+  /**
+   * Run independent merges on this many threads. Each merge starts as soon as
+   * its own input files are done, so merges within a pass run side by side,
+   * and a merge in the next pass can start while the rest of the previous
+   * one is still going.
+   * @param mergeThreads threads for merging; 1 merges one group at a time
+   * @return this
+   */
+  public ReplacementDiskSort<E> setMergeThreads(int mergeThreads) {
+    this.mergeThreads = Math.max(1, mergeThreads);
+    return this;
+  }
+
+  /**
+   * Overlap merge I/O with the merge itself. Each merge input is read ahead on
+   * its own thread, blockElements at a time with one block in hand and one
+   * more queued (double buffered), and the output is written behind on another
+   * thread, handed over in blocks the same way. Costs about
+   * (inputs + 1) * 2 * blockElements elements of extra memory per merge, on
+   * top of whatever your iterators and appenders buffer.
+   * @param blockElements elements per block; 0 (the default) merges synchronously
+   * @return this
+   */
+  public ReplacementDiskSort<E> setAsyncIO(int blockElements) {
+    this.asyncBlock = Math.max(0, blockElements);
+    return this;
+  }
+
+  private ExecutorService ioPool() {
+    // not the instance monitor; run() holds that while merge threads get here
+    synchronized (ioLock) {
+      if (ioPool == null) {
+        ioPool = Executors.newCachedThreadPool(r -> {
+          Thread t = new Thread(r, "ReplacementDiskSort-io");
+          t.setDaemon(true);
+          return t;
+        });
+      }
+      return ioPool;
+    }
+  }
+
+  private void shutdownIO() {
+    synchronized (ioLock) {
+      if (ioPool != null) {
+        // also unsticks any read ahead / write behind left over from a failure
+        ioPool.shutdownNow();
+        ioPool = null;
+      }
+    }
+  }
+
   private void verbose(String fmt, Object... args) {
     if (verbose != null) {
       verbose.println(String.format(fmt, args));
@@ -265,34 +378,81 @@ public class ReplacementDiskSort<E extends ReplacementDiskSort.Element> {
         "Can't write to working directory/does not exist/not directory: [" + workingDirectory + "]");
     }
     this.workDirectory = workingDirectory;
+    long startMS = System.currentTimeMillis();
 
-    List<File> current = makeRuns(src, maxElementsForRuns);
-    List<File> next = new ArrayList<>();
+    List<CompletableFuture<File>> current = new ArrayList<>();
+    for (File f : makeRuns(src, maxElementsForRuns)) {
+      current.add(CompletableFuture.completedFuture(f));
+    }
+    List<CompletableFuture<File>> next = new ArrayList<>();
 
-    int pass = 1;
+    // lay out the whole merge tree up front; each merge runs once its inputs
+    // are done. Single threaded, that is each merge in turn, right here.
+    ExecutorService pool = (mergeThreads <= 1) ? null : Executors.newFixedThreadPool(mergeThreads, r -> {
+      Thread t = new Thread(r, "ReplacementDiskSort-merge");
+      t.setDaemon(true);
+      return t;
+    });
+    Executor exec = (pool == null) ? Runnable::run : pool;
+    // first merge failure; once set, merges not yet started are skipped
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    File sorted;
+    try {
+      int pass = 1;
 
-    while (current.size() > 1) {
-      while (!current.isEmpty()) {
-        List<File> subFiles;
-        if (current.size() < maxElementsForMerges) {
-          subFiles = current;
-        } else if (current.size() < 2 * maxElementsForMerges) {
-          subFiles = current.subList(0, current.size() / 2);
-        } else {
-          subFiles = current.subList(0, maxElementsForMerges);
+      while (current.size() > 1) {
+        while (!current.isEmpty()) {
+          List<CompletableFuture<File>> subFiles;
+          if (current.size() < maxElementsForMerges) {
+            subFiles = current;
+          } else if (current.size() < 2 * maxElementsForMerges) {
+            subFiles = current.subList(0, current.size() / 2);
+          } else {
+            subFiles = current.subList(0, maxElementsForMerges);
+          }
+          List<CompletableFuture<File>> inputs = new ArrayList<>(subFiles);
+          int thisPass = pass++;
+          File interim = passFile(thisPass);
+          next.add(CompletableFuture.allOf(inputs.toArray(new CompletableFuture<?>[0])).thenApplyAsync(v -> {
+            if (failure.get() != null) {
+              // the sort has already failed; don't spend I/O on a merge nobody will use
+              throw new CancellationException();
+            }
+            List<File> files = new ArrayList<>();
+            inputs.forEach(in -> files.add(in.join()));
+            try {
+              return mergePass(thisPass, files, interim);
+            } catch (IOException e) {
+              failure.compareAndSet(null, e);
+              throw new UncheckedIOException(e);
+            } catch (RuntimeException | Error e) {
+              failure.compareAndSet(null, e);
+              throw e;
+            }
+          }, exec));
+          subFiles.clear();
         }
-        File interim = passFile(pass);
-        mergePass(pass++, subFiles, interim);
-        subFiles.clear();
-        next.add(interim);
+        current = next;
+        next = new ArrayList<>();
+      }
+      sorted = current.get(0).join();
+    } catch (CompletionException | CancellationException e) {
+      // report the merge that actually failed, as thrown, not the wrapper
+      Throwable cause = failure.get();
+      if (cause == null) {
+        throw e;
+      }
+      throw unwrap(cause);
+    } finally {
+      if (pool != null) {
+        pool.shutdownNow();
       }
-      current = next;
-      next = new ArrayList<>();
+      shutdownIO();
     }
 
-    Files.move(current.get(0).toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    Files.move(sorted.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
     verbose("Sort complete. %d items. Elapsed time: %dms ", runPassInfo.get(runPassInfo.size() - 1).runCounts.get(0),
-      runPassInfo.stream().mapToLong(rp -> rp.runTimeMS).sum());
+      System.currentTimeMillis() - startMS);
   }
 
   private File passFile(int pass) {
@@ -301,12 +461,27 @@ public class ReplacementDiskSort<E extends ReplacementDiskSort.Element> {
 
   protected List<File> makeRuns(File src, int maxElementsForRuns) throws IOException {
     verbose("Pass 0: Generating Runs...");
-    PriorityQueue<E> q = new PriorityQueue<>(maxElementsForRuns, this.comp);
     long msStart = System.currentTimeMillis();
-
     ExternalIterator<E> elements = iteratorMaker.make(src);
-
     ArrayList<File> files = new ArrayList<>();
+    ArrayList<Long> runCounts = new ArrayList<>();
+    List<Long> workerMS;
+    if (runThreads <= 1) {
+      replacementSelect(elements, maxElementsForRuns, files, runCounts);
+      workerMS = singletonList(System.currentTimeMillis() - msStart);
+    } else {
+      workerMS = parallelRuns(elements, maxElementsForRuns, files, runCounts);
+    }
+    long tookMS = System.currentTimeMillis() - msStart;
+    this.runPassInfo.add(new PassInfo(0, singletonList(src), new ArrayList<>(files), runCounts, tookMS, workerMS));
+    return files;
+  }
+
+  private void replacementSelect(ExternalIterator<E> elements,
+                                 int maxElementsForRuns,
+                                 List<File> files,
+                                 List<Long> runCounts) throws IOException {
+    RunHeap q = new RunHeap(maxElementsForRuns);
 
     // fill the queue first. all pass 0.
     for (int i = 0; i < maxElementsForRuns; i++) {
@@ -324,10 +499,9 @@ public class ReplacementDiskSort<E extends ReplacementDiskSort.Element> {
     files.add(f);
     int count = 0;
     boolean doneReading = false;
-    ArrayList<Long> runCounts = new ArrayList<>();
 
     while (!q.isEmpty()) {
-      E val = q.poll();
+      E val = q.peek();
       // if no more from this run, roll run file
       if (val.getRun() != currentRun) {
         runCounts.add((long) count);
@@ -343,29 +517,151 @@ public class ReplacementDiskSort<E extends ReplacementDiskSort.Element> {
       output.append(val);
       count++;
       // if we have another
+      E newVal = null;
       if (!doneReading) {
-        E newVal = elements.next();
-        if (newVal != null) {
-          newVal.setRun(currentRun);
-          // if it is out of order wrt last written value
-          if (comp.compare(newVal, val) < 0) {
-            // future run
-            newVal.setRun(currentRun + 1);
-          }
-          // add new one back in.
-          q.add(newVal);
-        } else {
-          doneReading = true;
+        newVal = elements.next();
+        doneReading = (newVal == null);
+      }
+      if (newVal != null) {
+        newVal.setRun(currentRun);
+        // if it is out of order wrt last written value
+        if (comp.compare(newVal, val) < 0) {
+          // future run
+          newVal.setRun(currentRun + 1);
         }
+        // it takes the written one's place; one sift down, no sift up.
+        q.replaceTop(newVal);
+      } else {
+        q.poll();
       }
     }
     verbose("Pass 0: Generated run %d with %d elements...", currentRun, count);
     runCounts.add((long) count);
 
     output.close();
-    long tookMS = System.currentTimeMillis() - msStart;
-    this.runPassInfo.add(new PassInfo(0, singletonList(src), new ArrayList<>(files), runCounts, tookMS));
-    return files;
+  }
+
+  private List<Long> parallelRuns(ExternalIterator<E> elements,
+                                  int maxElementsForRuns,
+                                  List<File> files,
+                                  List<Long> runCounts) throws IOException {
+    // this thread reads and deals out blocks round robin; each worker does
+    // replacement selection on its share.
+    int perWorker = Math.max(1, maxElementsForRuns / runThreads);
+    ExecutorService pool = Executors.newFixedThreadPool(runThreads, r -> {
+      Thread t = new Thread(r, "ReplacementDiskSort-runs");
+      t.setDaemon(true);
+      return t;
+    });
+    List<Dealt> workers = new ArrayList<>();
+    List<Future<Long>> results = new ArrayList<>();
+    try {
+      for (int i = 0; i < runThreads; i++) {
+        Dealt w = new Dealt();
+        workers.add(w);
+        results.add(pool.submit(() -> {
+          long start = System.currentTimeMillis();
+          try {
+            replacementSelect(w, perWorker, w.files, w.runCounts);
+          } catch (IOException | RuntimeException e) {
+            // keep the reader from blocking on us
+            w.drain();
+            throw e;
+          }
+          return System.currentTimeMillis() - start;
+        }));
+      }
+      try {
+        int next = 0;
+        for (boolean more = true; more; ) {
+          List<E> block = new ArrayList<>(FAN_OUT_BLOCK);
+          while (block.size() < FAN_OUT_BLOCK) {
+            E e = elements.next();
+            if (e == null) {
+              more = false;
+              break;
+            }
+            block.add(e);
+          }
+          if (!block.isEmpty()) {
+            workers.get(next).deal(block);
+            next = (next + 1) % runThreads;
+          }
+        }
+      } finally {
+        for (Dealt w : workers) {
+          w.deal(Collections.emptyList());
+        }
+      }
+      List<Long> ret = new ArrayList<>();
+      for (int i = 0; i < runThreads; i++) {
+        ret.add(results.get(i).get());
+        files.addAll(workers.get(i).files);
+        runCounts.addAll(workers.get(i).runCounts);
+      }
+      return ret;
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      throw unwrap(e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private static IOException unwrap(Throwable cause) {
+    // a worker's failure as it was thrown; only checked exceptions other
+    // than IOException get wrapped
+    if (cause instanceof RuntimeException) {
+      throw (RuntimeException) cause;
+    }
+    if (cause instanceof Error) {
+      throw (Error) cause;
+    }
+    return (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+  }
+
+  /**
+   * One run generation worker's input: blocks of elements dealt out by the
+   * reader, ending with an empty block.
+   */
+  private class Dealt implements ExternalIterator<E> {
+    private final BlockingQueue<List<E>> blocks = new ArrayBlockingQueue<>(4);
+    private final List<File> files = new ArrayList<>();
+    private final List<Long> runCounts = new ArrayList<>();
+    private Iterator<E> current = Collections.emptyIterator();
+    private boolean done = false;
+
+    void deal(List<E> block) throws InterruptedException {
+      blocks.put(block);
+    }
+
+    @Override
+    public E next() throws IOException {
+      while (!current.hasNext()) {
+        if (done) {
+          return null;
+        }
+        List<E> block = take();
+        done = block.isEmpty();
+        current = block.iterator();
+      }
+      return current.next();
+    }
+
+    void drain() throws IOException {
+      while (!done) {
+        done = take().isEmpty();
+      }
+    }
+
+    private List<E> take() throws IOException {
+      try {
+        return blocks.take();
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+    }
   }
 
   public List<PassInfo> getPassInfo() {
@@ -379,7 +675,7 @@ public class ReplacementDiskSort<E extends ReplacementDiskSort.Element> {
     return appenderMaker.make(f);
   }
 
-  private void writeFully(FileChannel ch, ByteBuffer slice) throws IOException {
+  private static void writeFully(FileChannel ch, ByteBuffer slice) throws IOException {
     while (slice.hasRemaining()) {
       ch.write(slice);
     }
@@ -390,7 +686,7 @@ public class ReplacementDiskSort<E extends ReplacementDiskSort.Element> {
     private E next;
 
     public FileHead(File f) throws IOException {
-      this.iter = iteratorMaker.make(f);
+      this.iter = (asyncBlock > 0) ? new ReadAhead(iteratorMaker.make(f)) : iteratorMaker.make(f);
       this.next = iter.next();
     }
 
@@ -410,25 +706,32 @@ public class ReplacementDiskSort<E extends ReplacementDiskSort.Element> {
   protected File mergePass(int pass, List<File> inputFiles, File dest) throws IOException {
     verbose("Merge pass %d: for %s...", pass, inputFiles);
     long startMS = System.currentTimeMillis();
-    PriorityQueue<FileHead> q = new PriorityQueue<>((c1, c2) -> comp.compare(c1.next, c2.next));
+    List<FileHead> heads = new ArrayList<>();
     for (File file : inputFiles) {
       FileHead head = new FileHead(file);
-      q.add(head);
+      if (!head.isDone()) {
+        heads.add(head);
+      }
     }
     long cnt = 0;
     ExternalAppender<E> output = makeAppender(dest);
-    while (!q.isEmpty()) {
-      FileHead n = q.poll();
-      E elem = n.pullElement();
-      if (elem != null) {
+    WriteBehind behind = null;
+    if (asyncBlock > 0) {
+      output = behind = new WriteBehind(output);
+    }
+    if (!heads.isEmpty()) {
+      LoserTree tree = new LoserTree(heads);
+      for (FileHead n = tree.winner(); !n.isDone(); n = tree.winner()) {
         cnt++;
-        output.append(elem);
-      }
-      if (!n.isDone()) {
-        q.add(n);
+        output.append(n.pullElement());
+        tree.replay();
       }
     }
-    output.close();
+    if (behind != null) {
+      behind.finish();
+    } else {
+      output.close();
+    }
     long tookMS = System.currentTimeMillis() - startMS;
     if (deleteFiles) {
       for (File file : inputFiles) {
@@ -440,4 +743,815 @@ public class ReplacementDiskSort<E extends ReplacementDiskSort.Element> {
     verbose("Merge pass %d: completed: %s elements in %dms", pass, pi.runCounts.get(0), pi.runTimeMS);
     return dest;
   }
+
+  /**
+   * Iterator reading blocks ahead on a pool thread. An empty block marks the end.
+   */
+  private class ReadAhead implements ExternalIterator<E> {
+    private final BlockingQueue<List<E>> blocks = new ArrayBlockingQueue<>(1);
+    private volatile IOException failed = null;
+    private Iterator<E> current = Collections.emptyIterator();
+    private boolean done = false;
+
+    ReadAhead(ExternalIterator<E> src) {
+      ioPool().execute(() -> {
+        try {
+          for (boolean more = true; more; ) {
+            List<E> block = new ArrayList<>(asyncBlock);
+            try {
+              while (block.size() < asyncBlock) {
+                E e = src.next();
+                if (e == null) {
+                  more = false;
+                  break;
+                }
+                block.add(e);
+              }
+            } catch (IOException | RuntimeException e) {
+              failed = (e instanceof IOException) ? (IOException) e : new IOException(e);
+              more = false;
+            }
+            if (!block.isEmpty()) {
+              blocks.put(block);
+            }
+          }
+          blocks.put(Collections.emptyList());
+        } catch (InterruptedException e) {
+          // shut down
+        }
+      });
+    }
+
+    @Override
+    public E next() throws IOException {
+      while (!current.hasNext()) {
+        if (done) {
+          return null;
+        }
+        try {
+          List<E> block = blocks.take();
+          done = block.isEmpty();
+          current = block.iterator();
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException();
+        }
+        if (done && failed != null) {
+          throw failed;
+        }
+      }
+      return current.next();
+    }
+  }
+
+  /**
+   * Appender handing blocks to a pool thread, which does the real appends. An
+   * empty block marks the end; finish() waits for it and reports any failure.
+   */
+  private class WriteBehind implements ExternalAppender<E> {
+    private final BlockingQueue<List<E>> blocks = new ArrayBlockingQueue<>(1);
+    private final Future<?> writer;
+    private List<E> block = new ArrayList<>(asyncBlock);
+
+    WriteBehind(ExternalAppender<E> dest) {
+      this.writer = ioPool().submit(() -> {
+        IOException failed = null;
+        try {
+          for (List<E> b = blocks.take(); !b.isEmpty(); b = blocks.take()) {
+            // after a failure, just drain so the merge never blocks on us
+            for (int i = 0; failed == null && i < b.size(); i++) {
+              try {
+                dest.append(b.get(i));
+              } catch (IOException | RuntimeException e) {
+                failed = (e instanceof IOException) ? (IOException) e : new IOException(e);
+              }
+            }
+          }
+        } finally {
+          dest.close();
+        }
+        if (failed != null) {
+          throw failed;
+        }
+        return null;
+      });
+    }
+
+    @Override
+    public void append(E elem) throws IOException {
+      block.add(elem);
+      if (block.size() >= asyncBlock) {
+        handOff(block);
+        block = new ArrayList<>(asyncBlock);
+      }
+    }
+
+    private void handOff(List<E> b) throws IOException {
+      try {
+        blocks.put(b);
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      }
+    }
+
+    void finish() throws IOException {
+      if (!block.isEmpty()) {
+        handOff(block);
+      }
+      handOff(Collections.emptyList());
+      try {
+        writer.get();
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      } catch (ExecutionException e) {
+        throw unwrap(e.getCause());
+      }
+    }
+
+    @Override
+    public void close() {
+      try {
+        finish();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  /**
+   * Binary min heap for replacement selection. replaceTop() swaps the smallest
+   * element for a new one with a single sift down, where PriorityQueue would
+   * need a poll() and an add().
+   */
+  private class RunHeap {
+    private final Object[] heap;
+    private int size = 0;
+
+    RunHeap(int capacity) {
+      this.heap = new Object[Math.max(1, capacity)];
+    }
+
+    boolean isEmpty() {
+      return size == 0;
+    }
+
+    void add(E e) {
+      int i = size++;
+      while (i > 0) {
+        int parent = (i - 1) >>> 1;
+        if (comp.compare(e, elem(parent)) >= 0) {
+          break;
+        }
+        heap[i] = heap[parent];
+        i = parent;
+      }
+      heap[i] = e;
+    }
+
+    E peek() {
+      return elem(0);
+    }
+
+    void poll() {
+      E last = elem(--size);
+      heap[size] = null;
+      if (size > 0) {
+        siftDown(last);
+      }
+    }
+
+    void replaceTop(E e) {
+      siftDown(e);
+    }
+
+    private void siftDown(E e) {
+      int i = 0;
+      int half = size >>> 1;
+      while (i < half) {
+        int child = 2 * i + 1;
+        int right = child + 1;
+        if (right < size && comp.compare(elem(right), elem(child)) < 0) {
+          child = right;
+        }
+        if (comp.compare(e, elem(child)) <= 0) {
+          break;
+        }
+        heap[i] = heap[child];
+        i = child;
+      }
+      heap[i] = e;
+    }
+
+    @SuppressWarnings("unchecked")
+    private E elem(int i) {
+      return (E) heap[i];
+    }
+  }
+
+  /**
+   * Tournament tree of losers over the merge inputs. Each internal node holds
+   * the input that lost the match there; node 0 holds the overall winner. After
+   * the winner gives up its element, only its path to the root is replayed:
+   * one comparison per level, about log2(K) per element, against roughly twice
+   * that for a heap. An exhausted input loses to everything.
+   */
+  private class LoserTree {
+    private final List<FileHead> heads;
+    private final int[] tree;
+
+    LoserTree(List<FileHead> heads) {
+      this.heads = heads;
+      this.tree = new int[heads.size()];
+      Arrays.fill(tree, -1);
+      for (int i = 0; i < heads.size(); i++) {
+        play(i);
+      }
+    }
+
+    FileHead winner() {
+      return heads.get(tree[0]);
+    }
+
+    void replay() {
+      play(tree[0]);
+    }
+
+    private void play(int leaf) {
+      int winner = leaf;
+      for (int node = (leaf + tree.length) >>> 1; node > 0; node = node >>> 1) {
+        if (tree[node] < 0) {
+          // first to arrive while building; wait here for the other side
+          tree[node] = winner;
+          return;
+        }
+        if (beats(tree[node], winner)) {
+          int t = tree[node];
+          tree[node] = winner;
+          winner = t;
+        }
+      }
+      tree[0] = winner;
+    }
+
+    private boolean beats(int a, int b) {
+      E ea = heads.get(a).next;
+      E eb = heads.get(b).next;
+      if (ea == null || eb == null) {
+        return eb == null && ea != null;
+      }
+      return comp.compare(ea, eb) < 0;
+    }
+  }
+
+  /**
+   * Element for the built in long keyed formats: the key, plus an optional
+   * fixed width payload carried along untouched.
+   */
+  public static class LongElement extends Element {
+    private final byte[] payload;
+
+    public LongElement(long key) {
+      this(key, null);
+    }
+
+    public LongElement(long key, byte[] payload) {
+      super(key);
+      this.payload = payload;
+    }
+
+    @Override
+    public Long getData() {
+      return (Long) super.getData();
+    }
+
+    public long getKey() {
+      return getData();
+    }
+
+    public byte[] getPayload() {
+      return payload;
+    }
+  }
+
+  /**
+   * Element for the built in byte[N] format.
+   */
+  public static class BytesElement extends Element {
+    public BytesElement(byte[] data) {
+      super(data);
+    }
+
+    @Override
+    public byte[] getData() {
+      return (byte[]) super.getData();
+    }
+  }
+
+  /**
+   * Built in fixed width binary record formats, so the common cases need no
+   * hand written iterators and appenders: big endian long keys, long keys with
+   * a fixed width payload, and raw byte[N] records compared as unsigned bytes.
+   * Files are read and written through FileChannels with a direct buffer of
+   * bufferBytes each, rounded down to whole records.
+   * <p>These still make one Element per record. For long keyed records,
+   * LongRecordSort sorts the same files without any.
+   * @param <EE> element type
+   */
+  public static final class Binary<EE extends Element> {
+    private final int recordBytes;
+    private final int bufferBytes;
+    private final Function<ByteBuffer, EE> decoder;
+    private final BiConsumer<EE, ByteBuffer> encoder;
+    private final Comparator<EE> comparator;
+
+    private Binary(int recordBytes,
+                   int bufferBytes,
+                   Function<ByteBuffer, EE> decoder,
+                   BiConsumer<EE, ByteBuffer> encoder,
+                   Comparator<EE> comparator) {
+      this.recordBytes = recordBytes;
+      this.bufferBytes = Math.max(1, bufferBytes / recordBytes) * recordBytes;
+      this.decoder = decoder;
+      this.encoder = encoder;
+      this.comparator = comparator;
+    }
+
+    /**
+     * 8 byte big endian signed long records.
+     * @param bufferBytes buffer per open file
+     * @return format
+     */
+    public static Binary<LongElement> longs(int bufferBytes) {
+      return new Binary<>(Long.BYTES, bufferBytes, b -> new LongElement(b.getLong()),
+        (e, b) -> b.putLong(e.getKey()), Comparator.comparingLong(LongElement::getKey));
+    }
+
+    /**
+     * Big endian signed long key followed by payloadBytes of payload.
+     * @param payloadBytes payload width
+     * @param bufferBytes buffer per open file
+     * @return format
+     */
+    public static Binary<LongElement> longsWithPayload(int payloadBytes, int bufferBytes) {
+      if (payloadBytes < 0) {
+        throw new IllegalArgumentException("Payload bytes: " + payloadBytes);
+      }
+      return new Binary<>(Long.BYTES + payloadBytes, bufferBytes, b -> {
+        long key = b.getLong();
+        byte[] payload = new byte[payloadBytes];
+        b.get(payload);
+        return new LongElement(key, payload);
+      }, (e, b) -> b.putLong(e.getKey()).put(e.getPayload(), 0, payloadBytes),
+        Comparator.comparingLong(LongElement::getKey));
+    }
+
+    /**
+     * Raw records of width bytes, ordered as unsigned bytes, first to last.
+     * @param width record width
+     * @param bufferBytes buffer per open file
+     * @return format
+     */
+    public static Binary<BytesElement> bytes(int width, int bufferBytes) {
+      if (width <= 0) {
+        throw new IllegalArgumentException("Record width: " + width);
+      }
+      return new Binary<>(width, bufferBytes, b -> {
+        byte[] data = new byte[width];
+        b.get(data);
+        return new BytesElement(data);
+      }, (e, b) -> b.put(e.getData(), 0, width), (e1, e2) -> compareUnsigned(e1.getData(), e2.getData()));
+    }
+
+    public int getRecordBytes() {
+      return recordBytes;
+    }
+
+    public IterMaker<EE> iterMaker() {
+      return f -> {
+        FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        ByteBuffer buf = ByteBuffer.allocateDirect(bufferBytes);
+        buf.flip();
+        return () -> {
+          if (buf.remaining() < recordBytes && !fill(ch, buf, recordBytes)) {
+            return null;
+          }
+          return decoder.apply(buf);
+        };
+      };
+    }
+
+    public AppenderMaker<EE> appenderMaker() {
+      return f -> {
+        FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+          StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer buf = ByteBuffer.allocateDirect(bufferBytes);
+        return new ExternalAppender<EE>() {
+          @Override
+          public void append(EE elem) throws IOException {
+            if (buf.remaining() < recordBytes) {
+              buf.flip();
+              writeFully(ch, buf);
+              buf.clear();
+            }
+            encoder.accept(elem, buf);
+          }
+
+          @Override
+          public void close() {
+            try {
+              buf.flip();
+              writeFully(ch, buf);
+              ch.close();
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          }
+        };
+      };
+    }
+
+    public Comparator<EE> comparator() {
+      return comparator;
+    }
+  }
+
+  /**
+   * Primitive sort for fixed width records keyed by a big endian signed long in
+   * their first 8 bytes (so Binary.longs() and Binary.longsWithPayload() files).
+   * No Elements at all: runs are read into a direct buffer, their keys pulled
+   * into a long[] and sorted (with an int[] of record positions alongside if
+   * there is a payload), then written out in order; runs are merged through a
+   * loser tree over the current key of each input. Runs are memory sized rather
+   * than replacement selected, which keeps every comparison on primitives.
+   * Records with equal keys come out in no particular order.
+   * <p>Memory is maxRecordsForRuns records for run generation, and
+   * (inputs + 1) * bufferBytes for each merge.
+   */
+  public static class LongRecordSort {
+    private final int recordBytes;
+    private final List<PassInfo> passInfo = new ArrayList<>();
+    private int bufferBytes = 1024 * 1024;
+    private boolean deleteFiles = true;
+    private PrintStream verbose = System.out;
+    private int filenameCounter = 0;
+
+    /**
+     * Constructor.
+     * @param recordBytes record width, 8 or more
+     */
+    public LongRecordSort(int recordBytes) {
+      if (recordBytes < Long.BYTES) {
+        throw new IllegalArgumentException("Record must hold a long key: " + recordBytes);
+      }
+      this.recordBytes = recordBytes;
+    }
+
+    /**
+     * Direct buffer size for each file read or written during a merge.
+     * @param bufferBytes buffer size, rounded down to whole records
+     * @return this
+     */
+    public LongRecordSort setBufferBytes(int bufferBytes) {
+      this.bufferBytes = bufferBytes;
+      return this;
+    }
+
+    public LongRecordSort setDeleteFiles(boolean deleteFiles) {
+      this.deleteFiles = deleteFiles;
+      return this;
+    }
+
+    public LongRecordSort setVerbose(PrintStream verbose) {
+      this.verbose = verbose;
+      return this;
+    }
+
+    public List<PassInfo> getPassInfo() {
+      return Collections.unmodifiableList(passInfo);
+    }
+
+    /**
+     * Sort.
+     * @param src source file
+     * @param maxRecordsForRuns records held in memory per run
+     * @param maxFilesForMerges max runs merged at once
+     * @param dest destination file. Cannot be the same as source file.
+     * @param workingDirectory working directory
+     * @throws IOException on exception
+     */
+    public synchronized void run(File src,
+                                 int maxRecordsForRuns,
+                                 int maxFilesForMerges,
+                                 File dest,
+                                 File workingDirectory) throws IOException {
+      if (!src.exists() || !src.canRead()) {
+        throw new IOException("Can't read source file: [" + src + "]");
+      }
+      if (dest.exists()) {
+        throw new IOException("Can't write to dest file: [" + dest + "]");
+      }
+      if (!workingDirectory.exists() || !workingDirectory.canWrite() || !workingDirectory.isDirectory()) {
+        throw new IOException(
+          "Can't write to working directory/does not exist/not directory: [" + workingDirectory + "]");
+      }
+      if ((long) maxRecordsForRuns * recordBytes > Integer.MAX_VALUE || maxRecordsForRuns <= 0) {
+        throw new IllegalArgumentException("Run of " + maxRecordsForRuns + " records does not fit one buffer");
+      }
+      if (maxFilesForMerges < 2) {
+        throw new IllegalArgumentException("Must merge at least 2 files at a time");
+      }
+      long startMS = System.currentTimeMillis();
+      List<File> current = makeRuns(src, maxRecordsForRuns, workingDirectory);
+      int pass = 1;
+      while (current.size() > 1) {
+        List<File> next = new ArrayList<>();
+        for (int i = 0; i < current.size(); i = i + maxFilesForMerges) {
+          List<File> group = current.subList(i, Math.min(current.size(), i + maxFilesForMerges));
+          if (group.size() == 1) {
+            next.add(group.get(0));
+          } else {
+            next.add(merge(pass++, group, new File(workingDirectory, "lpass-" + filenameCounter++)));
+          }
+        }
+        current = next;
+      }
+      if (current.isEmpty()) {
+        FileChannel.open(dest.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE).close();
+      } else {
+        Files.move(current.get(0).toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      }
+      verbose("Sort complete. %d records. Elapsed time: %dms ", dest.length() / recordBytes,
+        System.currentTimeMillis() - startMS);
+    }
+
+    private List<File> makeRuns(File src, int maxRecordsForRuns, File workDir) throws IOException {
+      verbose("Pass 0: Generating Runs...");
+      long startMS = System.currentTimeMillis();
+      List<File> files = new ArrayList<>();
+      List<Long> runCounts = new ArrayList<>();
+      ByteBuffer run = ByteBuffer.allocateDirect(maxRecordsForRuns * recordBytes);
+      ByteBuffer out = ByteBuffer.allocateDirect(Math.max(1, bufferBytes / recordBytes) * recordBytes);
+      long[] keys = new long[maxRecordsForRuns];
+      int[] at = (recordBytes == Long.BYTES) ? null : new int[maxRecordsForRuns];
+      try (FileChannel in = FileChannel.open(src.toPath(), StandardOpenOption.READ)) {
+        for (; ; ) {
+          run.clear();
+          while (run.hasRemaining() && in.read(run) >= 0) {
+            // fill
+          }
+          if (run.position() % recordBytes != 0) {
+            throw new IOException("Truncated record at end of " + src);
+          }
+          int n = run.position() / recordBytes;
+          if (n == 0) {
+            break;
+          }
+          for (int i = 0; i < n; i++) {
+            keys[i] = run.getLong(i * recordBytes);
+          }
+          File f = new File(workDir, "lpass-0-" + filenameCounter++);
+          try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.WRITE)) {
+            out.clear();
+            if (at == null) {
+              Arrays.sort(keys, 0, n);
+              for (int i = 0; i < n; i++) {
+                if (!out.hasRemaining()) {
+                  drain(ch, out);
+                }
+                out.putLong(keys[i]);
+              }
+            } else {
+              for (int i = 0; i < n; i++) {
+                at[i] = i * recordBytes;
+              }
+              sortKeys(keys, at, 0, n - 1);
+              ByteBuffer rec = run.duplicate();
+              for (int i = 0; i < n; i++) {
+                if (out.remaining() < recordBytes) {
+                  drain(ch, out);
+                }
+                rec.limit(at[i] + recordBytes).position(at[i]);
+                out.put(rec);
+              }
+            }
+            drain(ch, out);
+          }
+          verbose("Pass 0: Generated run %d with %d records...", files.size(), n);
+          files.add(f);
+          runCounts.add((long) n);
+          if (n < maxRecordsForRuns) {
+            break;
+          }
+        }
+      }
+      long tookMS = System.currentTimeMillis() - startMS;
+      passInfo.add(new PassInfo(0, singletonList(src), new ArrayList<>(files), runCounts, tookMS));
+      return files;
+    }
+
+    private File merge(int pass, List<File> inputs, File dest) throws IOException {
+      verbose("Merge pass %d: for %s...", pass, inputs);
+      long startMS = System.currentTimeMillis();
+      int k = inputs.size();
+      LongHead[] heads = new LongHead[k];
+      long cnt = 0;
+      try {
+        for (int i = 0; i < k; i++) {
+          heads[i] = new LongHead(inputs.get(i));
+        }
+        try (FileChannel ch = FileChannel.open(dest.toPath(), StandardOpenOption.CREATE_NEW,
+          StandardOpenOption.WRITE)) {
+          ByteBuffer out = ByteBuffer.allocateDirect(Math.max(1, bufferBytes / recordBytes) * recordBytes);
+          // same loser tree as mergePass(), on primitive keys
+          int[] tree = new int[k];
+          Arrays.fill(tree, -1);
+          for (int i = 0; i < k; i++) {
+            play(heads, tree, i);
+          }
+          for (LongHead w = heads[tree[0]]; !w.done; w = heads[tree[0]]) {
+            if (out.remaining() < recordBytes) {
+              drain(ch, out);
+            }
+            w.copyTo(out);
+            cnt++;
+            w.advance();
+            play(heads, tree, tree[0]);
+          }
+          drain(ch, out);
+        }
+      } finally {
+        for (LongHead h : heads) {
+          if (h != null) {
+            h.ch.close();
+          }
+        }
+      }
+      long tookMS = System.currentTimeMillis() - startMS;
+      if (deleteFiles) {
+        for (File file : inputs) {
+          file.delete();
+        }
+      }
+      passInfo.add(new PassInfo(pass, new ArrayList<>(inputs), singletonList(dest), singletonList(cnt), tookMS));
+      verbose("Merge pass %d: completed: %d records in %dms", pass, cnt, tookMS);
+      return dest;
+    }
+
+    private static void play(LongHead[] heads, int[] tree, int leaf) {
+      int winner = leaf;
+      for (int node = (leaf + tree.length) >>> 1; node > 0; node = node >>> 1) {
+        if (tree[node] < 0) {
+          tree[node] = winner;
+          return;
+        }
+        LongHead a = heads[tree[node]];
+        LongHead b = heads[winner];
+        if (!a.done && (b.done || a.key < b.key)) {
+          int t = tree[node];
+          tree[node] = winner;
+          winner = t;
+        }
+      }
+      tree[0] = winner;
+    }
+
+    /**
+     * One merge input: its current record sits at the buffer's position, with
+     * the key already pulled out.
+     */
+    private class LongHead {
+      private final FileChannel ch;
+      private final ByteBuffer buf = ByteBuffer.allocateDirect(Math.max(1, bufferBytes / recordBytes) * recordBytes);
+      private long key;
+      private boolean done = false;
+
+      LongHead(File f) throws IOException {
+        this.ch = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        buf.flip();
+        load();
+      }
+
+      private void load() throws IOException {
+        if (buf.remaining() < recordBytes && !fill(ch, buf, recordBytes)) {
+          done = true;
+        } else {
+          key = buf.getLong(buf.position());
+        }
+      }
+
+      void copyTo(ByteBuffer out) {
+        int lim = buf.limit();
+        buf.limit(buf.position() + recordBytes);
+        out.put(buf);
+        buf.limit(lim);
+      }
+
+      void advance() throws IOException {
+        load();
+      }
+    }
+
+    private void verbose(String fmt, Object... args) {
+      if (verbose != null) {
+        verbose.println(String.format(fmt, args));
+      }
+    }
+
+    private static void drain(FileChannel ch, ByteBuffer out) throws IOException {
+      out.flip();
+      writeFully(ch, out);
+      out.clear();
+    }
+
+    /**
+     * Sorts keys[lo..hi], moving at[] along with them. Three way quicksort, so
+     * runs of equal keys cost nothing extra.
+     */
+    private static void sortKeys(long[] keys, int[] at, int lo, int hi) {
+      while (hi - lo > 16) {
+        int mid = (lo + hi) >>> 1;
+        // median of three as the pivot
+        if (keys[mid] < keys[lo]) {
+          swap(keys, at, mid, lo);
+        }
+        if (keys[hi] < keys[lo]) {
+          swap(keys, at, hi, lo);
+        }
+        if (keys[hi] < keys[mid]) {
+          swap(keys, at, hi, mid);
+        }
+        long pivot = keys[mid];
+        int lt = lo;
+        int gt = hi;
+        int i = lo;
+        while (i <= gt) {
+          if (keys[i] < pivot) {
+            swap(keys, at, lt++, i++);
+          } else if (keys[i] > pivot) {
+            swap(keys, at, i, gt--);
+          } else {
+            i++;
+          }
+        }
+        // recurse into the smaller side, loop on the larger
+        if (lt - lo < hi - gt) {
+          sortKeys(keys, at, lo, lt - 1);
+          lo = gt + 1;
+        } else {
+          sortKeys(keys, at, gt + 1, hi);
+          hi = lt - 1;
+        }
+      }
+      for (int i = lo + 1; i <= hi; i++) {
+        for (int j = i; j > lo && keys[j] < keys[j - 1]; j--) {
+          swap(keys, at, j, j - 1);
+        }
+      }
+    }
+
+    private static void swap(long[] keys, int[] at, int i, int j) {
+      long k = keys[i];
+      keys[i] = keys[j];
+      keys[j] = k;
+      int a = at[i];
+      at[i] = at[j];
+      at[j] = a;
+    }
+  }
+
+  /**
+   * Compacts what is left in buf and reads more, until at least need bytes are
+   * there or the file ends. Closes the channel at the end of the file.
+   * @return true if need bytes are available
+   * @throws IOException on a trailing partial record
+   */
+  private static boolean fill(FileChannel ch, ByteBuffer buf, int need) throws IOException {
+    if (!ch.isOpen()) {
+      return false;
+    }
+    buf.compact();
+    while (buf.hasRemaining() && ch.read(buf) >= 0) {
+      // fill
+    }
+    buf.flip();
+    if (buf.remaining() >= need) {
+      return true;
+    }
+    ch.close();
+    if (buf.hasRemaining()) {
+      throw new IOException("Truncated record: " + buf.remaining() + " trailing bytes");
+    }
+    return false;
+  }
+
+  private static int compareUnsigned(byte[] a, byte[] b) {
+    int n = Math.min(a.length, b.length);
+    for (int i = 0; i < n; i++) {
+      int ret = Integer.compare(a[i] & 0xff, b[i] & 0xff);
+      if (ret != 0) {
+        return ret;
+      }
+    }
+    return Integer.compare(a.length, b.length);
+  }
 }
@@ -16,19 +16,35 @@
 package org.sfj;
 
 import org.hamcrest.Matchers;
+import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
 
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
 import static org.sfj.ChiseledMap.OpenOption.DONT_CARE;
@@ -200,4 +216,1224 @@ public class ChiseledMapTest {
     newKV.close();
     kv.close();
   }
+
+  @Test
+  public void testCompactInPlace() throws Exception {
+    File f = tmp.newFile();
+    ChiseledMap<Integer, String> kv = new ChiseledMap<>(f, DONT_CARE, null, null, null);
+    for (int i = 0; i < 1000; i++) {
+      kv.ioSet(i, "first-" + i);
+      kv.ioSet(i, "second-" + i);
+    }
+    for (int i = 0; i < 1000; i = i + 2) {
+      kv.ioUnset(i);
+    }
+    assertThat(kv.liveRatio(), Matchers.lessThan(0.5d));
+    long before = kv.bytesOnDisk();
+
+    // keep writing while compacting
+    AtomicBoolean stop = new AtomicBoolean(false);
+    Thread writer = new Thread(() -> {
+      for (int i = 1000; !stop.get(); i++) {
+        kv.set(i % 1200 + 1000, "during-" + i);
+      }
+    });
+    writer.start();
+    // the first versions, the removed second versions and the tombstones are all garbage
+    assertThat(kv.compact(), Matchers.greaterThan(before / 2));
+    stop.set(true);
+    writer.join();
+
+    assertThat(kv.size(), is(500 + (int) kv.keySet().stream().filter(k -> k >= 1000).count()));
+    for (int i = 1; i < 1000; i = i + 2) {
+      assertThat(kv.get(i), is("second-" + i));
+      assertThat(kv.get(i - 1), Matchers.nullValue());
+    }
+    ConcurrentHashMap<Integer, String> shadow = new ConcurrentHashMap<>(kv);
+    long onDisk = kv.entriesOnDisk();
+    kv.close();
+
+    ChiseledMap<Integer, String> kv2 = new ChiseledMap<>(f, MUST_EXIST, null, null, null);
+    assertThat(kv2.size(), is(shadow.size()));
+    assertThat(kv2.entriesOnDisk(), is(onDisk));
+    shadow.forEach((k, v) -> assertThat(kv2.get(k), is(v)));
+    kv2.close();
+  }
+
+  @Test
+  public void testAutoCompact() throws Exception {
+    ChiseledMap<Integer, Integer> kv = new ChiseledMap<>(tmp.newFile(), DONT_CARE, null, null, null);
+    kv.setAutoCompact(0.25d, 1000);
+    for (int i = 0; i < 20000; i++) {
+      kv.ioSet(i % 100, i);
+    }
+    while (kv.isCompacting()) {
+      Thread.sleep(10);
+    }
+    assertThat(kv.entriesOnDisk(), Matchers.lessThan(20000L));
+    for (int i = 0; i < 100; i++) {
+      assertThat(kv.get(i), is(19900 + i));
+    }
+    kv.close();
+  }
+
+  @Test
+  public void testAutoCompactOneAtATime() throws Exception {
+    ChiseledMap<Integer, Integer> kv = new ChiseledMap<>(tmp.newFile(), DONT_CARE, null, null, null);
+    // every overwrite or remove is below a ratio of 1.0
+    kv.setAutoCompact(1.0d, 0);
+    int most = 0;
+    for (int i = 0; i < 5000; i++) {
+      kv.ioSet(i % 100, i);
+      if (i % 3 == 0) {
+        kv.ioUnset((i + 50) % 100);
+      }
+      int running = 0;
+      for (Thread t : Thread.getAllStackTraces().keySet()) {
+        if (t.getName().equals("ChiseledMap-compact")) {
+          running++;
+        }
+      }
+      most = Math.max(most, running);
+    }
+    while (kv.isCompacting()) {
+      Thread.sleep(10);
+    }
+    // one finishing up while the next starts, at most; not one per append
+    assertThat(most, Matchers.lessThanOrEqualTo(2));
+    assertThat(kv.get(99), is(4999));
+    kv.close();
+  }
+
+  @Test
+  public void testCheckpointReplaysTail() throws Exception {
+    File f = tmp.newFile();
+    ChiseledMap<Integer, String> kv = new ChiseledMap<>(f, DONT_CARE, null, null, null);
+    kv.setAutoCheckpoint(1000);
+    for (int i = 0; i < 5000; i++) {
+      kv.ioSet(i, "v-" + i);
+    }
+    assertThat(kv.checkpoint(), is(true));
+    File ckpt = new File(f.getPath() + ".ckpt");
+    assertThat(ckpt.exists(), is(true));
+    // tail after the checkpoint; then "crash", no close
+    for (int i = 0; i < 100; i++) {
+      kv.ioUnset(i);
+      kv.ioSet(i + 5000, "tail-" + i);
+    }
+    kv.flush();
+
+    ChiseledMap<Integer, String> kv2 = new ChiseledMap<>(f, MUST_EXIST, null, null, null);
+    assertThat(kv2.size(), is(5000));
+    assertThat(kv2.entriesOnDisk(), is(kv.entriesOnDisk()));
+    assertThat(kv2.get(50), Matchers.nullValue());
+    assertThat(kv2.get(500), is("v-500"));
+    assertThat(kv2.get(5050), is("tail-50"));
+    kv2.close();
+    kv.close();
+
+    // corrupt checkpoint means a full rebuild, not a failure
+    FileChannel.open(ckpt.toPath(), StandardOpenOption.WRITE).truncate(ckpt.length() / 2).close();
+    ChiseledMap<Integer, String> kv3 = new ChiseledMap<>(f, MUST_EXIST, null, null, null);
+    assertThat(kv3.size(), is(5000));
+    assertThat(kv3.get(5050), is("tail-50"));
+    kv3.compact();
+    assertThat(ckpt.exists(), is(false));
+    kv3.close();
+  }
+
+  @Test
+  public void testStaleCheckpointIgnored() throws Exception {
+    File f = tmp.newFile();
+    ChiseledMap<Integer, String> kv = new ChiseledMap<>(f, DONT_CARE, null, null, null);
+    for (int i = 0; i < 1000; i++) {
+      kv.ioSet(i, "v-" + i);
+    }
+    kv.flush();
+    File backup = tmp.newFile();
+    Files.copy(f.toPath(), backup.toPath(), REPLACE_EXISTING);
+    for (int i = 0; i < 500; i++) {
+      kv.ioUnset(i);
+    }
+    assertThat(kv.checkpoint(), is(true));
+    File ckpt = new File(f.getPath() + ".ckpt");
+
+    // a snapshot written where an old checkpoint sits
+    File snap = tmp.newFile();
+    snap.delete();
+    Files.copy(ckpt.toPath(), new File(snap.getPath() + ".ckpt").toPath());
+    kv.snapshot(snap).close();
+    ChiseledMap<Integer, String> s = new ChiseledMap<>(snap, MUST_EXIST, null, null, null);
+    assertThat(s.size(), is(500));
+    assertThat(s.get(700), is("v-700"));
+    s.close();
+    kv.close();
+
+    // a log restored from backup, then written differently, past the
+    // newer checkpoint's position
+    Files.copy(backup.toPath(), f.toPath(), REPLACE_EXISTING);
+    File keep = tmp.newFile();
+    Files.copy(ckpt.toPath(), keep.toPath(), REPLACE_EXISTING);
+    ckpt.delete();
+    kv = new ChiseledMap<>(f, MUST_EXIST, null, null, null);
+    for (int i = 0; i < 1000; i++) {
+      kv.ioSet(i, "w-" + i);
+    }
+    kv.close();
+    Files.copy(keep.toPath(), ckpt.toPath(), REPLACE_EXISTING);
+    kv = new ChiseledMap<>(f, MUST_EXIST, null, null, null);
+    assertThat(kv.size(), is(1000));
+    assertThat(kv.get(7), is("w-7"));
+    assertThat(kv.get(700), is("w-700"));
+    kv.close();
+  }
+
+  @Test
+  public void testMemoryMappedReads() throws Exception {
+    int N = 100000;
+    // trivial codec, so the read path rather than deserialization dominates
+    ChiseledMap<Integer, String> kv = new ChiseledMap<>(tmp.newFile(), DONT_CARE, null, (k, v) -> {
+      byte[] b = (v == null) ? new byte[0] : v.getBytes(StandardCharsets.UTF_8);
+      return (ByteBuffer) ByteBuffer.allocate(8 + b.length).putInt(k).putInt(v == null ? -1 : b.length).put(b).flip();
+    }, (arr) -> {
+      ByteBuffer b = ByteBuffer.wrap(arr);
+      int k = b.getInt();
+      int len = b.getInt();
+      return new AbstractMap.SimpleEntry<>(k, len < 0 ? null : new String(arr, 8, len, StandardCharsets.UTF_8));
+    });
+    for (int i = 0; i < N; i++) {
+      kv.ioSet(i, "value-" + i);
+    }
+    for (boolean mmap : new boolean[] { false, true, false, true }) {
+      kv.setMemoryMapped(mmap);
+      ThreadLocalRandom r = ThreadLocalRandom.current();
+      long ns = System.nanoTime();
+      for (int i = 0; i < N; i++) {
+        int k = r.nextInt(N);
+        assertThat(kv.ioGet(k), is("value-" + k));
+      }
+      long took = System.nanoTime() - ns;
+      System.out.println((mmap ? "mmap" : "channel") + " reads: " + (N * 1000000000L / took) + " gets/sec");
+    }
+    // grows past the mapping, and survives a compaction swap
+    kv.ioSet(N, "late");
+    assertThat(kv.ioGet(N), is("late"));
+    kv.compact();
+    assertThat(kv.ioGet(N), is("late"));
+    assertThat(kv.ioGet(0), is("value-0"));
+    kv.close();
+  }
+
+  @Test
+  public void testMappedTailRemaps() throws Exception {
+    File f = tmp.newFile();
+    ChiseledMap<Integer, String> kv = new ChiseledMap<>(f, DONT_CARE, null, null, null);
+    kv.setMemoryMapped(true);
+    String pad = String.join("", Collections.nCopies(20, "pad-"));
+    int N = 20000;
+    for (int i = 0; i < N; i++) {
+      kv.ioSet(i, pad + i);
+      kv.flush();
+      // each read is just past the end of the last mapping
+      assertThat(kv.ioGet(i), is(pad + i));
+    }
+    assertThat(kv.bytesOnDisk() > 2 * 1024 * 1024, is(true));
+    assertThat(kv.remaps(), Matchers.lessThan(16L));
+    for (int i = 0; i < N; i = i + 97) {
+      assertThat(kv.ioGet(i), is(pad + i));
+    }
+    kv.close();
+  }
+
+  @Test
+  public void testReadsDoNotFlush() throws Exception {
+    File f = tmp.newFile();
+    ChiseledMap<Integer, String> kv = new ChiseledMap<>(f, DONT_CARE, null, null, null);
+    kv.ioSet(1, "one");
+    kv.flush();
+    long len = f.length();
+    for (int i = 2; i < 100; i++) {
+      kv.ioSet(i, "buffered-" + i);
+      assertThat(kv.ioGet(i), is("buffered-" + i));
+    }
+    assertThat(kv.ioGet(1), is("one"));
+    assertThat(f.length(), is(len));
+
+    // readers racing a writer which keeps flushing the buffer out from under them
+    AtomicBoolean stop = new AtomicBoolean(false);
+    Thread writer = new Thread(() -> {
+      for (int i = 0; !stop.get(); i++) {
+        kv.set(i % 5000, "w-" + (i % 5000));
+      }
+    });
+    writer.start();
+    ThreadLocalRandom r = ThreadLocalRandom.current();
+    long end = System.currentTimeMillis() + 2000;
+    while (System.currentTimeMillis() < end) {
+      int k = r.nextInt(5000);
+      String v = kv.ioGet(k);
+      if (v != null) {
+        assertThat(v, Matchers.anyOf(is("w-" + k), is("buffered-" + k), is("one")));
+      }
+    }
+    stop.set(true);
+    writer.join();
+    kv.close();
+  }
+
+  @Test
+  public void testDurabilityModes() throws Exception {
+    File f = tmp.newFile();
+    ChiseledMap<Integer, String> kv = new ChiseledMap<>(f, DONT_CARE, null, null, null);
+    kv.setDurability(ChiseledMap.Durability.GROUP_COMMIT, 0);
+    long len = f.length();
+    kv.ioSet(1, "one");
+    assertThat(f.length(), Matchers.greaterThan(len));
+
+    // concurrent writers share forces
+    int threads = 8;
+    int per = 500;
+    LinkedList<Thread> writers = new LinkedList<>();
+    for (int t = 0; t < threads; t++) {
+      int base = t * per;
+      writers.add(new Thread(() -> {
+        for (int i = 0; i < per; i++) {
+          kv.set(base + i, "v" + i);
+        }
+      }));
+    }
+    long ns = System.nanoTime();
+    writers.forEach(Thread::start);
+    for (Thread t : writers) {
+      t.join();
+    }
+    long took = System.nanoTime() - ns;
+    System.out.println("group commit: " + (threads * per * 1000000000L / took) + " durable writes/sec");
+    assertThat(f.length(), is(kv.bytesOnDisk()));
+
+    // flushes racing compactions must not mark the new file durable
+    AtomicBoolean done = new AtomicBoolean(false);
+    AtomicReference<Throwable> failed = new AtomicReference<>();
+    Thread churn = new Thread(() -> {
+      try {
+        while (!done.get()) {
+          kv.flush();
+          kv.compact();
+        }
+      } catch (Throwable t) {
+        failed.set(t);
+      }
+    });
+    churn.start();
+    for (int i = 0; i < 2000; i++) {
+      kv.set(i % 100, "c" + i);
+    }
+    done.set(true);
+    churn.join();
+    assertThat(failed.get(), Matchers.nullValue());
+    assertThat(kv.get(99), is("c1999"));
+
+    kv.setDurability(ChiseledMap.Durability.PERIODIC, 10);
+    len = f.length();
+    kv.ioSet(2, "two");
+    long stop = System.currentTimeMillis() + 5000;
+    while (f.length() == len && System.currentTimeMillis() < stop) {
+      Thread.sleep(5);
+    }
+    assertThat(f.length(), Matchers.greaterThan(len));
+    kv.close();
+  }
+
+  @Test
+  public void testPutAllChunks() throws Exception {
+    File f = tmp.newFile();
+    int chunk = 256 * 1024;
+    ChiseledMap<Integer, byte[]> kv = new ChiseledMap<Integer, byte[]>(f, DONT_CARE, null, null, null)
+      .putAllChunk(chunk);
+    byte[] val = new byte[10 * 1024];
+    val[7] = 7;
+    TreeMap<Integer, byte[]> bulk = new TreeMap<>();
+    int many = 4 * 1024 * 1024 / val.length;
+    for (int i = 0; i < many; i++) {
+      bulk.put(i, val);
+    }
+    kv.putAll(bulk);
+    assertThat(kv.size(), is(many));
+    kv.close();
+
+    // walk the log; no batch may go much past the chunk
+    int records = 0;
+    try (FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+      ByteBuffer word = ByteBuffer.allocate(Integer.BYTES);
+      long pos = ChiseledMap.HDR.length;
+      while (pos < fc.size()) {
+        word.clear();
+        fc.read(word, pos);
+        int len = word.getInt(0) & ChiseledMap.LEN_MASK;
+        assertThat(len, Matchers.lessThan(chunk + 2 * val.length));
+        pos = pos + Integer.BYTES + len + Integer.BYTES;
+        records++;
+      }
+      assertThat(pos, is(fc.size()));
+    }
+    assertThat(records, Matchers.greaterThanOrEqualTo(many * val.length / (chunk + 2 * val.length)));
+
+    ChiseledMap<Integer, byte[]> kv2 = new ChiseledMap<>(f, MUST_EXIST, null, null, null);
+    assertThat(kv2.size(), is(many));
+    assertThat(kv2.get(many - 1)[7], is((byte) 7));
+    kv2.close();
+  }
+
+  @Test
+  public void testWriteBatchCommitsOnce() throws Exception {
+    File f = tmp.newFile();
+    ChiseledMap<Integer, String> kv = new ChiseledMap<>(f, DONT_CARE, null, null, null);
+    ChiseledMap<Integer, String>.WriteBatch b = kv.batch().put(1, "one");
+    b.commit();
+    try {
+      b.commit();
+      Assert.fail();
+    } catch (IllegalStateException e) {
+    }
+    try {
+      b.put(2, "two");
+      Assert.fail();
+    } catch (IllegalStateException e) {
+    }
+    assertThat(kv.size(), is(1));
+    kv.close();
+  }
+
+  @Test
+  public void testOversizedLegacyRecordRefused() throws Exception {
+    File f = tmp.newFile();
+    // a pre-epoch file: the old header, then a record whose length word
+    // would read as flags today. Sparse, so it costs no disk.
+    int word = 0x10000000 | 16;
+    try (FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.WRITE)) {
+      fc.write(ByteBuffer.wrap(ChiseledMap.HDR), 0);
+      ByteBuffer b = ByteBuffer.allocate(Integer.BYTES);
+      b.putInt(0, word);
+      fc.write(b, ChiseledMap.HDR.length);
+      fc.write(ByteBuffer.allocate(1), ChiseledMap.HDR.length + Integer.BYTES + (long) word + Integer.BYTES - 1);
+    }
+    long len = f.length();
+    try {
+      new ChiseledMap<Integer, String>(f, MUST_EXIST, null, null, null);
+      Assert.fail();
+    } catch (IOException e) {
+    }
+    assertThat(f.length(), is(len));
+  }
+
+  @Test
+  public void testWriteBatch() throws Exception {
+    File f = tmp.newFile();
+    ChiseledMap<Integer, String> kv = new ChiseledMap<>(f, DONT_CARE, null, null, null);
+    kv.ioSet(-1, "gone");
+    ChiseledMap<Integer, String>.WriteBatch b = kv.batch();
+    for (int i = 0; i < 1000; i++) {
+      b.put(i, "b-" + i);
+    }
+    b.put(7, "seven").remove(-1);
+    b.commit();
+    assertThat(kv.size(), is(1000));
+    assertThat(kv.get(7), is("seven"));
+    assertThat(kv.get(8), is("b-8"));
+    assertThat(kv.get(-1), Matchers.nullValue());
+
+    TreeMap<Integer, String> bulk = new TreeMap<>();
+    for (int i = 1000; i < 2000; i++) {
+      bulk.put(i, "bulk-" + i);
+    }
+    kv.putAll(bulk);
+    kv.flush();
+    long good = f.length();
+
+    // a torn batch at the tail is dropped whole
+    ChiseledMap<Integer, String>.WriteBatch torn = kv.batch();
+    for (int i = 0; i < 100; i++) {
+      torn.put(i, "torn-" + i);
+    }
+    torn.commit();
+    kv.close();
+    FileChannel.open(f.toPath(), StandardOpenOption.WRITE).truncate(f.length() - 10).close();
+
+    ChiseledMap<Integer, String> kv2 = new ChiseledMap<>(f, MUST_EXIST, null, null, null);
+    assertThat(f.length(), is(good));
+    assertThat(kv2.size(), is(2000));
+    assertThat(kv2.get(7), is("seven"));
+    assertThat(kv2.get(50), is("b-50"));
+    assertThat(kv2.get(1500), is("bulk-1500"));
+    assertThat(kv2.get(-1), Matchers.nullValue());
+
+    // batch members survive compaction as standalone records
+    kv2.compact();
+    kv2.close();
+    ChiseledMap<Integer, String> kv3 = new ChiseledMap<>(f, MUST_EXIST, null, null, null);
+    assertThat(kv3.size(), is(2000));
+    assertThat(kv3.get(7), is("seven"));
+    assertThat(kv3.get(1999), is("bulk-1999"));
+    kv3.close();
+  }
+
+  @Test
+  public void testWriteScaling() throws Exception {
+    int total = 64000;
+    String payload = new String(new char[200]).replace('\0', 'x');
+    TreeMap<Integer, Long> rates = new TreeMap<>();
+    for (int round = 0; round < 2; round++) {
+      for (int threads = 1; threads <= 16; threads = threads * 2) {
+        File f = tmp.newFile();
+        ChiseledMap<Integer, String> kv = new ChiseledMap<>(f, DONT_CARE, null, null, null);
+        int per = total / threads;
+        LinkedList<Thread> writers = new LinkedList<>();
+        for (int t = 0; t < threads; t++) {
+          int base = t * per;
+          writers.add(new Thread(() -> {
+            for (int i = 0; i < per; i++) {
+              kv.set(base + i, payload + (base + i));
+            }
+          }));
+        }
+        long ns = System.nanoTime();
+        writers.forEach(Thread::start);
+        for (Thread t : writers) {
+          t.join();
+        }
+        long took = System.nanoTime() - ns;
+        long rate = total * 1000000000L / took;
+        rates.merge(threads, rate, Math::max);
+        System.out.println(threads + " writer threads: " + rate + " writes/sec");
+        assertThat(kv.size(), is(total));
+        kv.close();
+
+        // every write landed, intact, from every thread
+        ChiseledMap<Integer, String> back = new ChiseledMap<>(f, MUST_EXIST, null, null, null);
+        assertThat(back.size(), is(total));
+        for (int i = 0; i < total; i++) {
+          assertThat(back.get(i), is(payload + i));
+        }
+        back.close();
+      }
+    }
+    // more writers must not collapse throughput; best of two rounds, with
+    // plenty of slack for a noisy machine
+    long one = rates.get(1);
+    for (Map.Entry<Integer, Long> e : rates.entrySet()) {
+      assertThat(e.getKey() + " threads", e.getValue(), Matchers.greaterThan(one / 3));
+    }
+  }
+
+  @Test
+  public void testValueCache() throws Exception {
+    ChiseledMap<Integer, String> kv = new ChiseledMap<>(tmp.newFile(), DONT_CARE, null, null, null);
+    kv.setValueCache(100, 1024 * 1024);
+    for (int i = 0; i < 1000; i++) {
+      kv.ioSet(i, "v-" + i);
+    }
+    for (int i = 0; i < 10; i++) {
+      assertThat(kv.get(5), is("v-5"));
+    }
+    assertThat(kv.cacheMisses(), is(1L));
+    assertThat(kv.cacheHits(), is(9L));
+    // a write is a new address, so never stale
+    kv.ioSet(5, "new");
+    assertThat(kv.get(5), is("new"));
+    assertThat(kv.cacheMisses(), is(2L));
+    // entry bound evicts the least recently used
+    for (int i = 0; i < 1000; i++) {
+      kv.get(i);
+    }
+    long misses = kv.cacheMisses();
+    kv.get(0);
+    assertThat(kv.cacheMisses(), is(misses + 1));
+    kv.get(999);
+    assertThat(kv.cacheMisses(), is(misses + 1));
+    kv.compact();
+    assertThat(kv.get(999), is("v-999"));
+    assertThat(kv.cacheMisses(), is(misses + 2));
+
+    // either bound alone; 0 means no limit on that one
+    kv.setValueCache(0, 1024 * 1024);
+    kv.get(1);
+    kv.get(1);
+    assertThat(kv.cacheHits(), is(1L));
+    kv.setValueCache(10, 0);
+    kv.get(1);
+    kv.get(1);
+    assertThat(kv.cacheHits(), is(1L));
+    kv.setValueCache(0, 0);
+    kv.get(1);
+    assertThat(kv.cacheMisses(), is(0L));
+    kv.close();
+  }
+
+  @Test
+  public void testValueCacheCopiesByteArrays() throws Exception {
+    ChiseledMap<Integer, byte[]> kv = new ChiseledMap<>(tmp.newFile(), DONT_CARE, null,
+      ChiseledMap.binaryEncoder(ChiseledMap.Codec.INT, ChiseledMap.Codec.BYTES),
+      ChiseledMap.binaryDecoder(ChiseledMap.Codec.INT, ChiseledMap.Codec.BYTES));
+    kv.setValueCache(100, 0);
+    kv.ioSet(1, new byte[] { 1, 2, 3 });
+    kv.get(1)[0] = 99;
+    kv.get(1)[1] = 99;
+    assertThat(kv.get(1), is(new byte[] { 1, 2, 3 }));
+    assertThat(kv.cacheHits(), is(2L));
+    kv.close();
+  }
+
+  @Test
+  public void testRangeScans() throws Exception {
+    ChiseledMap<Integer, String> kv = new ChiseledMap<>(tmp.newFile(), DONT_CARE, null, null, null);
+    // written in reverse, so key order is the reverse of file order
+    for (int i = 2999; i >= 0; i--) {
+      kv.ioSet(i, "v-" + i);
+    }
+    int expect = 100;
+    for (Map.Entry<Integer, String> e : kv.entries(100, true, 2000, false)) {
+      assertThat(e.getKey(), is(expect));
+      assertThat(e.getValue(), is("v-" + expect));
+      expect++;
+    }
+    assertThat(expect, is(2000));
+
+    expect = 0;
+    for (Map.Entry<Integer, String> e : kv.entries(null, false, 10, true)) {
+      assertThat(e.getKey(), is(expect++));
+    }
+    assertThat(expect, is(11));
+
+    expect = 2991;
+    for (Map.Entry<Integer, String> e : kv.entries(2990, false, null, false)) {
+      assertThat(e.getKey(), is(expect++));
+    }
+    assertThat(expect, is(3000));
+
+    assertThat(kv.keys(10, true, 20, true).size(), is(11));
+    assertThat(kv.keys(10, false, 20, false).first(), is(11));
+    assertThat(kv.keySet().size(), is(3000));
+    kv.close();
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testBinaryCodecs() throws Exception {
+    ChiseledMap.Encoder<Long, String> enc = ChiseledMap.binaryEncoder(ChiseledMap.Codec.LONG,
+      ChiseledMap.Codec.STRING);
+    ChiseledMap.Decoder<Long, String> dec = ChiseledMap.binaryDecoder(ChiseledMap.Codec.LONG,
+      ChiseledMap.Codec.STRING);
+    ChiseledMap.Encoder<Long, String> ser = ChiseledMap.ENCODE_JAVA_SER;
+    ChiseledMap.Decoder<Long, String> deser = ChiseledMap.DECODE_JAVA_SER;
+
+    int N = 50000;
+    for (int round = 0; round < 2; round++) {
+      for (boolean binary : new boolean[] { false, true }) {
+        long bytes = 0;
+        long ns = System.nanoTime();
+        for (long i = 0; i < N; i++) {
+          String v = "value-" + i;
+          ByteBuffer b = binary ? enc.encode(i, v) : ser.encode(i, v);
+          bytes = bytes + b.remaining();
+          byte[] arr = new byte[b.remaining()];
+          b.get(arr);
+          assertThat((binary ? dec.decode(arr) : deser.decode(arr)).getValue(), is(v));
+        }
+        long took = System.nanoTime() - ns;
+        System.out.println((binary ? "binary" : "java ser") + ": " + bytes / N + " bytes/record, " + took / N +
+                           " ns/op encode+decode");
+      }
+    }
+
+    File f = tmp.newFile();
+    ChiseledMap<Long, String> kv = new ChiseledMap<>(f, DONT_CARE, null, enc, dec);
+    for (long i = 0; i < 1000; i++) {
+      kv.ioSet(i, "v-" + i);
+    }
+    kv.ioUnset(10L);
+    kv.close();
+    kv = new ChiseledMap<>(f, MUST_EXIST, null, enc, dec);
+    assertThat(kv.size(), is(999));
+    assertThat(kv.get(10L), Matchers.nullValue());
+    assertThat(kv.get(11L), is("v-11"));
+    // big values grow the encode buffer; still fine after
+    String big = String.join("", Collections.nCopies(20000, "big-"));
+    kv.ioSet(1L, big);
+    kv.ioSet(2L, "small");
+    assertThat(kv.get(1L), is(big));
+    assertThat(kv.get(2L), is("small"));
+    kv.close();
+
+    // strings decode from buffers with no array behind them, too
+    ByteBuffer three = enc.encode(3L, "three");
+    ByteBuffer direct = ByteBuffer.allocateDirect(three.remaining());
+    direct.put(three.duplicate()).flip();
+    for (ByteBuffer b : new ByteBuffer[] { direct, three.asReadOnlyBuffer() }) {
+      assertThat(ChiseledMap.Codec.LONG.get(b), is(3L));
+      assertThat(b.get(), is((byte) 1));
+      assertThat(ChiseledMap.Codec.STRING.get(b), is("three"));
+      assertThat(b.hasRemaining(), is(false));
+    }
+
+    // a user encoder handing back a shared buffer that happens to have spare
+    // room either side must not have it scribbled on
+    byte[] shared = new byte[Integer.BYTES + 3 + Integer.BYTES];
+    Arrays.fill(shared, (byte) 0x55);
+    ChiseledMap<Long, String> cached = new ChiseledMap<>(tmp.newFile(), DONT_CARE, null, (k, v) -> {
+      ByteBuffer b = ByteBuffer.wrap(shared);
+      b.position(Integer.BYTES).limit(Integer.BYTES + 3);
+      return b;
+    }, arr -> new AbstractMap.SimpleImmutableEntry<>(1L, "x"));
+    cached.ioSet(1L, "x");
+    cached.ioSet(2L, "x");
+    for (byte b : shared) {
+      assertThat(b, is((byte) 0x55));
+    }
+    cached.close();
+  }
+
+  @Test
+  public void testCompression() throws Exception {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 40; i++) {
+      sb.append("{\"id\":").append(i).append(",\"name\":\"anonymous\",\"tags\":[\"a\",\"b\"]},");
+    }
+    String blob = sb.toString();
+    File plainFile = tmp.newFile();
+    File zFile = tmp.newFile();
+    ChiseledMap<Integer, String> plain = new ChiseledMap<>(plainFile, DONT_CARE, null, null, null);
+    ChiseledMap<Integer, String> z = new ChiseledMap<>(zFile, DONT_CARE, null, null, null);
+    // a few uncompressed ones first, so the file is mixed
+    for (int i = 0; i < 10; i++) {
+      z.ioSet(i, blob + i);
+    }
+    z.setCompression(256, Deflater.BEST_SPEED);
+    for (int i = 0; i < 1000; i++) {
+      plain.ioSet(i, blob + i);
+      z.ioSet(i + 10, blob + i);
+      z.ioSet(-i - 1, "small");
+    }
+    z.ioSet(-1, "small");
+    assertThat(z.get(500), is(blob + 490));
+    System.out.println("plain: " + plain.bytesOnDisk() + " bytes, compressed: " + z.bytesOnDisk() + " bytes");
+    assertThat(z.bytesOnDisk() * 3, Matchers.lessThan(plain.bytesOnDisk()));
+    z.compact();
+    assertThat(z.get(500), is(blob + 490));
+    plain.close();
+    z.close();
+
+    z = new ChiseledMap<>(zFile, MUST_EXIST, null, null, null);
+    assertThat(z.size(), is(2010));
+    assertThat(z.get(5), is(blob + 5));
+    assertThat(z.get(1009), is(blob + 999));
+    assertThat(z.get(-1), is("small"));
+    z.close();
+
+    // tiny payloads just stay plain
+    ChiseledMap.Codec<Byte> oneByte = new ChiseledMap.Codec<Byte>() {
+      @Override
+      public void put(ByteBuffer b, Byte t) {
+        b.put(t);
+      }
+
+      @Override
+      public Byte get(ByteBuffer b) {
+        return b.get();
+      }
+    };
+    ChiseledMap<Byte, Byte> tiny = new ChiseledMap<>(tmp.newFile(), DONT_CARE, null,
+      ChiseledMap.binaryEncoder(oneByte, oneByte), ChiseledMap.binaryDecoder(oneByte, oneByte));
+    tiny.setCompression(1, Deflater.BEST_COMPRESSION);
+    tiny.ioSet((byte) 1, (byte) 2);
+    assertThat(tiny.get((byte) 1), is((byte) 2));
+    tiny.ioUnset((byte) 1);
+    assertThat(tiny.get((byte) 1), Matchers.nullValue());
+    tiny.close();
+    try {
+      z.setCompression(0, 42);
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    try {
+      z.setCompression(-1, Deflater.BEST_SPEED);
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testIndexHeapPerKey() throws Exception {
+    // backs the Index Memory figure in ChiseledMap.adoc
+    int many = 500000;
+    Integer[] keys = new Integer[many];
+    for (int i = 0; i < many; i++) {
+      keys[i] = 1000000 + i;
+    }
+    ChiseledMap<Integer, Integer> kv = new ChiseledMap<>(tmp.newFile(), DONT_CARE, null,
+      ChiseledMap.binaryEncoder(ChiseledMap.Codec.INT, ChiseledMap.Codec.INT),
+      ChiseledMap.binaryDecoder(ChiseledMap.Codec.INT, ChiseledMap.Codec.INT));
+    long before = usedHeap();
+    for (Integer k : keys) {
+      kv.ioSet(k, 0);
+    }
+    long after = usedHeap();
+    // the key objects were allocated up front, so this is the index alone
+    long perKey = (after - before) / many;
+    System.out.println("index heap: " + perKey + " bytes per key");
+    assertThat(kv.size(), is(many));
+    assertThat(perKey, Matchers.greaterThan(20L));
+    assertThat(perKey, Matchers.lessThan(150L));
+    kv.close();
+  }
+
+  private static long usedHeap() throws InterruptedException {
+    Runtime rt = Runtime.getRuntime();
+    long used = Long.MAX_VALUE;
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+      Thread.sleep(20);
+      used = Math.min(used, rt.totalMemory() - rt.freeMemory());
+    }
+    return used;
+  }
+
+  @Test
+  public void testParallelRebuild() throws Exception {
+    File f = tmp.newFile();
+    ChiseledMap<Integer, String> map = new ChiseledMap<>(f, DONT_CARE, null, null, null);
+    int many = ChiseledMap.REBUILD_CHUNK * 10;
+    for (int i = 0; i < many; i++) {
+      map.ioSet(i, "v" + i);
+    }
+    for (int i = 0; i < many; i = i + 3) {
+      map.ioSet(i, "again" + i);
+    }
+    for (int i = 1; i < many; i = i + 7) {
+      map.ioUnset(i);
+    }
+    map.batch().put(-1, "batched").remove(2).commit();
+    TreeMap<Integer, String> expect = new TreeMap<>(map);
+    long good = map.bytesOnDisk();
+    // these get lost to the corruption below
+    for (int i = 0; i < many; i++) {
+      map.ioSet(i + many, "lost" + i);
+    }
+    map.close();
+
+    long start = System.nanoTime();
+    map = new ChiseledMap<>(f, MUST_EXIST, null, null, null);
+    System.out.println("rebuilt " + map.entriesOnDisk() + " records in " + (System.nanoTime() - start) / 1000000 + "ms");
+    assertThat(map.size(), is(expect.size() + many));
+    assertThat(map.get(0), is("again0"));
+    assertThat(map.get(1), Matchers.nullValue());
+    assertThat(map.get(2), Matchers.nullValue());
+    assertThat(map.get(-1), is("batched"));
+    map.close();
+
+    // corrupt a record just past the good point; everything after it goes.
+    try (FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.WRITE)) {
+      fc.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), good + 10);
+    }
+    map = new ChiseledMap<>(f, MUST_EXIST, null, null, null);
+    assertThat(new TreeMap<>(map), is(expect));
+    assertThat(map.bytesOnDisk(), is(good));
+    map.close();
+  }
+
+  @Test
+  public void testExpiry() throws Exception {
+    File f = tmp.newFile();
+    ChiseledMap<Integer, String> map = new ChiseledMap<>(f, DONT_CARE, null, null, null);
+    for (int i = 0; i < 100; i++) {
+      map.set(i, "old" + i);
+    }
+    for (int i = 0; i < 50; i++) {
+      map.set(i, "short" + i, 100, TimeUnit.MILLISECONDS);
+    }
+    map.set(50, "long", 1, TimeUnit.HOURS);
+    map.set(0, "forever");
+    assertThat(map.get(1), is("short1"));
+    Thread.sleep(200);
+
+    // lazy on read, before anything has dropped them
+    assertThat(map.get(0), is("forever"));
+    assertThat(map.get(1), Matchers.nullValue());
+    assertThat(map.containsKey(1), is(false));
+    assertThat(map.get(50), is("long"));
+    assertThat(map.keySet().contains(1), is(false));
+    assertThat(map.keySet().size(), is(51));
+    assertThat(toList(map.keySet()).size(), is(51));
+    assertThat(map.keys(1, true, 60, false).first(), is(50));
+    assertThat(map.keys(0, false, 50, false).isEmpty(), is(true));
+    assertThat(map.keys(null, false, 50, false).descendingSet().first(), is(0));
+    assertThat(map.keys(0, false, 50, false).higher(0), Matchers.nullValue());
+    assertThat(map.size(), is(100));
+    assertThat(map.expire(), is(49));
+    assertThat(map.size(), is(51));
+    map.close();
+
+    // expired records read as deletes; the older values stay dead
+    map = new ChiseledMap<>(f, MUST_EXIST, null, null, null);
+    assertThat(map.size(), is(51));
+    assertThat(map.get(1), Matchers.nullValue());
+    assertThat(map.get(50), is("long"));
+
+    // expiries survive a checkpoint
+    map.set(1, "again", 200, TimeUnit.MILLISECONDS);
+    map.checkpoint();
+    map.close();
+    map = new ChiseledMap<>(f, MUST_EXIST, null, null, null);
+    assertThat(map.get(1), is("again"));
+
+    // background expirer, and compaction drops the expired records
+    map.setExpirer(10);
+    long deadline = System.currentTimeMillis() + 5000;
+    while (map.size() > 51 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(map.size(), is(51));
+    map.setExpirer(0);
+    map.compact();
+    assertThat(map.entriesOnDisk(), is(51L));
+    map.close();
+  }
+
+  @Test
+  public void testHugeTtlNeverExpires() throws Exception {
+    ChiseledMap<Integer, String> map = new ChiseledMap<>(tmp.newFile(), DONT_CARE, null, null, null);
+    map.set(1, "days", Long.MAX_VALUE, TimeUnit.DAYS);
+    map.set(2, "millis", Long.MAX_VALUE - 1, TimeUnit.MILLISECONDS);
+    assertThat(map.get(1), is("days"));
+    assertThat(map.get(2), is("millis"));
+    assertThat(map.expire(), is(0));
+    assertThat(map.keySet().size(), is(2));
+    map.close();
+  }
+
+  @Test
+  public void testChangeFeed() throws Exception {
+    File f = tmp.newFile();
+    ChiseledMap<Integer, String> map = new ChiseledMap<>(f, DONT_CARE, null, null, null);
+    map.set(1, "one");
+    map.set(2, "two");
+    map.remove(1);
+    map.batch().put(3, "three").put(4, "four").commit();
+
+    ChiseledMap<Integer, String>.ChangeCursor all = map.changes(ChiseledMap.logStart());
+    List<ChiseledMap.Change<Integer, String>> got = all.poll(100);
+    assertThat(got.size(), is(5));
+    assertThat(got.get(0).getKey(), is(1));
+    assertThat(got.get(0).getValue(), is("one"));
+    assertThat(got.get(2).isRemove(), is(true));
+    assertThat(got.get(4).getValue(), is("four"));
+    assertThat(all.position(), is(map.logEnd()));
+    assertThat(all.poll(100).isEmpty(), is(true));
+
+    // a limit stops early, and the position resumes
+    ChiseledMap<Integer, String>.ChangeCursor some = map.changes(ChiseledMap.logStart());
+    assertThat(some.poll(2).size(), is(2));
+    assertThat(map.changes(some.position()).poll(100).size(), is(3));
+
+    // tail from the end; a waiting poll wakes up on a write
+    ChiseledMap<Integer, String>.ChangeCursor tail = map.changes(map.logEnd());
+    Thread t = new Thread(() -> {
+      try {
+        Thread.sleep(50);
+        map.set(5, "five");
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+    t.start();
+    got = tail.poll(100, 10, TimeUnit.SECONDS);
+    t.join();
+    assertThat(got.size(), is(1));
+    assertThat(got.get(0).getValue(), is("five"));
+    assertThat(tail.poll(100, 10, TimeUnit.MILLISECONDS).isEmpty(), is(true));
+
+    map.compact();
+    try {
+      tail.poll(100);
+      Assert.fail();
+    } catch (IOException e) {
+      // expected, addresses all moved
+    }
+    map.close();
+  }
+
+  @Test
+  public void testLogShipping() throws Exception {
+    ChiseledMap<Integer, String> primary = new ChiseledMap<>(tmp.newFile(), DONT_CARE, null, null, null);
+    File ff = tmp.newFile();
+    ChiseledMap<Integer, String> follower = new ChiseledMap<Integer, String>(ff, DONT_CARE, null, null, null)
+      .setFollower(true);
+    primary.setCompression(64, Deflater.BEST_SPEED);
+    for (int i = 0; i < 1000; i++) {
+      primary.set(i, "value" + i);
+    }
+    primary.remove(7);
+    primary.batch().put(-1, "batched").remove(8).commit();
+    primary.set(-2, "ttl", 1, TimeUnit.HOURS);
+    primary.set(-3, String.join("", Collections.nCopies(100, "squash")));
+
+    // ship in small chunks, the way a follower polling the primary would
+    ship(primary, follower);
+    assertThat(follower.logEnd(), is(primary.logEnd()));
+    assertThat(follower.logEpoch(), is(primary.logEpoch()));
+    assertThat(new TreeMap<>(follower), is(new TreeMap<>(primary)));
+
+    try {
+      follower.set(1, "nope");
+      Assert.fail();
+    } catch (ChiseledMap.RuntimeIOException e) {
+      // expected
+    }
+    try {
+      primary.readLog(follower.logEpoch(), follower.logEnd() - 1, 1024);
+      Assert.fail();
+    } catch (IOException e) {
+      // expected, not a record boundary
+    }
+    primary.set(1, "changed");
+    ChiseledMap.LogChunk chunk = primary.readLog(follower.logEpoch(), follower.logEnd(), 1024);
+    chunk.getRecords()[chunk.getRecords().length - 1]++;
+    try {
+      follower.applyLog(chunk);
+      Assert.fail();
+    } catch (IOException e) {
+      // expected, crc
+    }
+    assertThat(follower.get(1), is("value1"));
+    follower.close();
+
+    // picks up where it left off after a restart
+    follower = new ChiseledMap<Integer, String>(ff, MUST_EXIST, null, null, null).setFollower(true);
+    follower.applyLog(primary.readLog(follower.logEpoch(), follower.logEnd(), 1024));
+    assertThat(follower.get(1), is("changed"));
+    assertThat(follower.get(-2), is("ttl"));
+    assertThat(new TreeMap<>(follower), is(new TreeMap<>(primary)));
+    follower.close();
+    primary.close();
+  }
+
+  @Test
+  public void testLogShippingAcrossCompaction() throws Exception {
+    // fixed width records, so an old address is still a record boundary
+    // after the primary compacts
+    ChiseledMap<Integer, Integer> primary = new ChiseledMap<>(tmp.newFile(), DONT_CARE, null,
+      ChiseledMap.binaryEncoder(ChiseledMap.Codec.INT, ChiseledMap.Codec.INT),
+      ChiseledMap.binaryDecoder(ChiseledMap.Codec.INT, ChiseledMap.Codec.INT));
+    ChiseledMap<Integer, Integer> follower = new ChiseledMap<>(tmp.newFile(), DONT_CARE, null,
+      ChiseledMap.binaryEncoder(ChiseledMap.Codec.INT, ChiseledMap.Codec.INT),
+      ChiseledMap.binaryDecoder(ChiseledMap.Codec.INT, ChiseledMap.Codec.INT)).setFollower(true);
+    for (int i = 0; i < 100; i++) {
+      primary.set(i, i);
+    }
+    ship(primary, follower);
+    for (int i = 0; i < 50; i++) {
+      primary.set(i, -i);
+    }
+    long before = primary.logEpoch();
+    primary.compact();
+    assertThat(primary.logEpoch(), is(before + 1));
+    for (int i = 0; i < 10; i++) {
+      primary.set(i, 1000 + i);
+    }
+    // the follower's end is a record boundary in the new log, just not the same record
+    assertThat(follower.logEnd(), Matchers.lessThan(primary.logEnd()));
+    assertThat((follower.logEnd() - ChiseledMap.logStart()) % 17, is(0L));
+    try {
+      primary.readLog(follower.logEpoch(), follower.logEnd(), 1024);
+      Assert.fail();
+    } catch (ChiseledMap.LogEpochException e) {
+      // expected; would otherwise ship a plausible but wrong suffix
+    }
+    // nor will the follower take a chunk from another epoch
+    try {
+      follower.applyLog(new ChiseledMap.LogChunk(primary.logEpoch(), follower.logEnd(), new byte[0]));
+      Assert.fail();
+    } catch (ChiseledMap.LogEpochException e) {
+      // expected
+    }
+    follower.close();
+
+    // a new follower starts from logStart() in any epoch
+    File ff = tmp.newFile();
+    ff.delete();
+    follower = new ChiseledMap<>(ff, DONT_CARE, null,
+      ChiseledMap.binaryEncoder(ChiseledMap.Codec.INT, ChiseledMap.Codec.INT),
+      ChiseledMap.binaryDecoder(ChiseledMap.Codec.INT, ChiseledMap.Codec.INT)).setFollower(true);
+    ship(primary, follower);
+    assertThat(new TreeMap<>(follower), is(new TreeMap<>(primary)));
+    follower.close();
+    // the epoch it took on is kept in the header
+    follower = new ChiseledMap<Integer, Integer>(ff, MUST_EXIST, null,
+      ChiseledMap.binaryEncoder(ChiseledMap.Codec.INT, ChiseledMap.Codec.INT),
+      ChiseledMap.binaryDecoder(ChiseledMap.Codec.INT, ChiseledMap.Codec.INT)).setFollower(true);
+    assertThat(follower.logEpoch(), is(primary.logEpoch()));
+    follower.close();
+    primary.close();
+  }
+
+  private static <K, V> void ship(ChiseledMap<K, V> primary, ChiseledMap<K, V> follower) throws IOException {
+    while (follower.logEnd() < primary.logEnd()) {
+      follower.applyLog(primary.readLog(follower.logEpoch(), follower.logEnd(), 1024));
+    }
+  }
+
+  @Test
+  public void testSecondaryIndex() throws Exception {
+    ChiseledMap<Integer, String> map = new ChiseledMap<>(tmp.newFile(), DONT_CARE, null, null, null);
+    for (int i = 0; i < 100; i++) {
+      map.set(i, "user" + i + "@" + (i % 5));
+    }
+    // index by the number after the '@'
+    ChiseledMap<Integer, String>.SecondaryIndex<Integer> byGroup =
+      map.addIndex(v -> Integer.parseInt(v.substring(v.indexOf('@') + 1)), null);
+    assertThat(byGroup.size(), is(5));
+    assertThat(toList(byGroup.keys(3)).size(), is(20));
+    assertThat(toList(byGroup.keys(1, true, 2, true)).size(), is(40));
+    assertThat(toList(byGroup.keys(null, false, 2, false)).size(), is(40));
+
+    // maintained from here on
+    map.set(3, "moved@9");
+    map.remove(8);
+    map.batch().put(200, "new@9").remove(13).commit();
+    map.set(300, "short@9", 50, TimeUnit.MILLISECONDS);
+    assertThat(toList(byGroup.keys(3)).size(), is(17));
+    assertThat(toList(byGroup.keys(9)).size(), is(3));
+    List<Map.Entry<Integer, String>> nines = new LinkedList<>();
+    byGroup.entries(9).forEach(nines::add);
+    assertThat(nines.get(0).getValue(), is("moved@9"));
+    assertThat(nines.get(1).getValue(), is("new@9"));
+    assertThat(nines.get(2).getValue(), is("short@9"));
+    Thread.sleep(100);
+    assertThat(toList(byGroup.keys(9)).size(), is(2));
+    map.expire();
+    assertThat(toList(byGroup.keys(9)).size(), is(2));
+    assertThat(toList(byGroup.keys(8, false, null, false)).size(), is(2));
+
+    map.removeIndex(byGroup);
+    map.set(400, "gone@9");
+    assertThat(byGroup.size(), is(0));
+    map.close();
+  }
+
+  private static <T> List<T> toList(Iterable<T> it) {
+    List<T> ret = new LinkedList<>();
+    it.forEach(ret::add);
+    return ret;
+  }
+
+  @Test
+  public void testTransactions() throws Exception {
+    ChiseledMap<Integer, Integer> map = new ChiseledMap<>(tmp.newFile(), DONT_CARE, null, null, null);
+    map.set(1, 100);
+    map.set(2, 0);
+
+    // transfer, and read your own writes
+    ChiseledMap<Integer, Integer>.Transaction tx = map.transaction();
+    tx.put(1, tx.get(1) - 10).put(2, tx.get(2) + 10);
+    assertThat(tx.get(1), is(90));
+    assertThat(map.get(1), is(100));
+    assertThat(tx.commit(), is(true));
+    assertThat(map.get(1), is(90));
+    assertThat(map.get(2), is(10));
+
+    // conflicts only on keys actually read
+    ChiseledMap<Integer, Integer>.Transaction t1 = map.transaction();
+    ChiseledMap<Integer, Integer>.Transaction t2 = map.transaction();
+    ChiseledMap<Integer, Integer>.Transaction t3 = map.transaction();
+    t1.put(1, t1.get(1) + 1);
+    t2.put(1, t2.get(1) + 2);
+    t3.put(3, t3.get(2));
+    assertThat(t1.commit(), is(true));
+    assertThat(t2.commit(), is(false));
+    assertThat(t3.commit(), is(true));
+    assertThat(map.get(1), is(91));
+    assertThat(map.get(3), is(10));
+
+    // reading an absent key conflicts with someone creating it
+    ChiseledMap<Integer, Integer>.Transaction t4 = map.transaction();
+    assertThat(t4.get(4), Matchers.nullValue());
+    t4.put(4, 1);
+    map.set(4, 2);
+    assertThat(t4.commit(), is(false));
+    assertThat(map.get(4), is(2));
+
+    // concurrent increments with retry add up
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(() -> {
+        try {
+          for (int j = 0; j < 500; j++) {
+            for (; ; ) {
+              ChiseledMap<Integer, Integer>.Transaction t = map.transaction();
+              t.put(5, (t.get(5) == null ? 0 : t.get(5)) + 1);
+              if (t.commit()) {
+                break;
+              }
+            }
+          }
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertThat(map.get(5), is(2000));
+    map.close();
+  }
+
+  @Test
+  public void testSnapshotViews() throws Exception {
+    ChiseledMap<Integer, String> map = new ChiseledMap<>(tmp.newFile(), DONT_CARE, null, null, null);
+    for (int i = 0; i < 1000; i++) {
+      map.set(i, "v" + i);
+    }
+    TreeMap<Integer, String> then = new TreeMap<>(map);
+    ChiseledMap<Integer, String>.Snapshot view = map.view();
+
+    // writes carry on, the view does not see them
+    map.set(1, "changed");
+    map.remove(2);
+    map.set(5000, "new");
+    map.batch().put(3, "batched").remove(4).commit();
+    assertThat(map.get(1), is("changed"));
+    assertThat(view.get(1), is("v1"));
+    assertThat(view.get(2), is("v2"));
+    assertThat(view.get(5000), Matchers.nullValue());
+    assertThat(view.containsKey(4), is(true));
+    TreeMap<Integer, String> seen = new TreeMap<>();
+    view.entries().forEach(e -> seen.put(e.getKey(), e.getValue()));
+    assertThat(seen, is(then));
+    assertThat(toList(view.keys()).size(), is(1000));
+
+    // compaction waits for views
+    assertThat(map.compact(), is(-1L));
+
+    // export in the background while writing
+    File out = new File(tmp.getRoot(), "export.chiseled");
+    Future<Long> done = view.exportInBackground(out);
+    for (int i = 0; i < 1000; i++) {
+      map.set(i, "later" + i);
+    }
+    assertThat(done.get(), is(1000L));
+    view.close();
+    assertThat(map.compact() > 0, is(true));
+
+    ChiseledMap<Integer, String> exported = new ChiseledMap<>(out, MUST_EXIST, null, null, null);
+    assertThat(new TreeMap<>(exported), is(then));
+    exported.close();
+
+    ChiseledMap<Integer, String> snap = map.snapshot(new File(tmp.getRoot(), "snap.chiseled"));
+    assertThat(new TreeMap<>(snap), is(new TreeMap<>(map)));
+    snap.close();
+    map.close();
+  }
 }
@@ -16,6 +16,7 @@
 package org.sfj;
 
 import org.hamcrest.Matchers;
+import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
@@ -37,9 +38,15 @@ import java.io.IOException;
 import java.io.Writer;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static java.nio.file.StandardOpenOption.APPEND;
 import static java.nio.file.StandardOpenOption.CREATE_NEW;
@@ -121,6 +128,298 @@ public class ReplacementDiskSortTest {
     runs.forEach(f -> verifyOrder(f, (ff) -> makeIter(ff), Comparator.comparing(IntElement::getData)));
   }
 
+  @Test
+  public void testParallelRunGeneration() throws IOException {
+    File folder = tmp.newFolder();
+    Random r = new Random(0);
+    int many = 200000;
+    File src = genIntFile(new File(folder, "source"), r, many);
+    File dest = new File(folder, "dest");
+    ReplacementDiskSort<IntElement> kd =
+      new ReplacementDiskSort<>(ReplacementDiskSortTest::makeIter, ReplacementDiskSortTest::makeAppender,
+        Comparator.comparing(IntElement::getData), true).setRunThreads(4).setVerbose(null);
+    kd.run(src, 10000, 100, dest, folder);
+    verifyOrder(dest, (ff) -> makeIter(ff), Comparator.comparing(IntElement::getData));
+    assertThat(dest.length(), Matchers.is(src.length()));
+
+    ReplacementDiskSort.PassInfo runs = kd.getPassInfo().get(0);
+    assertThat(runs.getWorkerTimesMS().size(), Matchers.is(4));
+    assertThat(runs.getRunCounts().stream().mapToLong(Long::longValue).sum(), Matchers.is((long) many));
+    System.out.println("Parallel runs: " + runs.getRunTimeMS() + "ms, workers " + runs.getWorkerTimesMS());
+  }
+
+  @Test
+  public void testParallelRunFailureNotWrapped() throws IOException {
+    File folder = tmp.newFolder();
+    File src = genIntFile(new File(folder, "source"), new Random(0), 20000);
+    // only the run workers fail, never the calling thread
+    Thread caller = Thread.currentThread();
+    Comparator<IntElement> comp = (a, b) -> {
+      if (Thread.currentThread() != caller) {
+        throw new IllegalStateException("bad compare");
+      }
+      return a.getData().compareTo(b.getData());
+    };
+    ReplacementDiskSort<IntElement> kd =
+      new ReplacementDiskSort<>(ReplacementDiskSortTest::makeIter, ReplacementDiskSortTest::makeAppender, comp,
+        true).setRunThreads(4).setVerbose(null);
+    try {
+      kd.run(src, 1000, 10, new File(folder, "dest"), folder);
+      Assert.fail();
+    } catch (IllegalStateException e) {
+      // thrown as is from the run worker, not wrapped in an IOException
+      assertThat(e.getMessage(), Matchers.is("bad compare"));
+    }
+  }
+
+  @Test
+  public void testConcurrentMerges() throws IOException {
+    File folder = tmp.newFolder();
+    Random r = new Random(0);
+    int many = 200000;
+    File src = genIntFile(new File(folder, "source"), r, many);
+    File dest = new File(folder, "dest");
+    // small heap and fan in, so there are lots of groups over several passes
+    ReplacementDiskSort<IntElement> kd =
+      new ReplacementDiskSort<>(ReplacementDiskSortTest::makeIter, ReplacementDiskSortTest::makeAppender,
+        Comparator.comparing(IntElement::getData), true).setMergeThreads(4).setVerbose(null);
+    kd.run(src, 500, 8, dest, folder);
+    verifyOrder(dest, (ff) -> makeIter(ff), Comparator.comparing(IntElement::getData));
+    assertThat(dest.length(), Matchers.is(src.length()));
+
+    List<ReplacementDiskSort.PassInfo> passes = kd.getPassInfo();
+    assertThat(passes.size(), Matchers.greaterThan(20));
+    ReplacementDiskSort.PassInfo last = passes.get(passes.size() - 1);
+    assertThat(last.getRunCounts().get(0), Matchers.is((long) many));
+    assertThat(folder.list().length, Matchers.is(2));
+  }
+
+  @Test
+  public void testAsyncMergeIO() throws IOException {
+    File folder = tmp.newFolder();
+    Random r = new Random(0);
+    int many = 200000;
+    File src = genIntFile(new File(folder, "source"), r, many);
+    File dest = new File(folder, "dest");
+    ReplacementDiskSort<IntElement> kd =
+      new ReplacementDiskSort<>(ReplacementDiskSortTest::makeIter, ReplacementDiskSortTest::makeAppender,
+        Comparator.comparing(IntElement::getData), true).setAsyncIO(1000).setMergeThreads(2).setVerbose(null);
+    kd.run(src, 1000, 10, dest, folder);
+    verifyOrder(dest, (ff) -> makeIter(ff), Comparator.comparing(IntElement::getData));
+    assertThat(dest.length(), Matchers.is(src.length()));
+
+    // a failing appender surfaces from run()
+    File dest2 = new File(folder, "dest2");
+    ReplacementDiskSort<IntElement> broken = new ReplacementDiskSort<>(ReplacementDiskSortTest::makeIter, f -> {
+      ReplacementDiskSort.ExternalAppender<IntElement> real = makeAppender(f);
+      return new ReplacementDiskSort.ExternalAppender<IntElement>() {
+        private int count = 0;
+
+        @Override
+        public void append(IntElement elem) throws IOException {
+          if (f.getName().startsWith("pass-1") && ++count > 100) {
+            throw new IOException("disk full");
+          }
+          real.append(elem);
+        }
+
+        @Override
+        public void close() {
+          real.close();
+        }
+      };
+    }, Comparator.comparing(IntElement::getData), true).setAsyncIO(10).setVerbose(null);
+    try {
+      broken.run(src, 1000, 10, dest2, folder);
+      Assert.fail();
+    } catch (IOException e) {
+      assertThat(e.getMessage(), Matchers.is("disk full"));
+    }
+  }
+
+  @Test
+  public void testMergeFailureStopsMerging() throws IOException {
+    File folder = tmp.newFolder();
+    File src = genIntFile(new File(folder, "source"), new Random(0), 20000);
+    // ~100 runs, merged 4 at a time: plenty of independent merges after the first
+    AtomicInteger merges = new AtomicInteger();
+    AtomicBoolean boom = new AtomicBoolean();
+    ReplacementDiskSort.AppenderMaker<IntElement> counting = f -> {
+      if (f.getName().startsWith("pass-")) {
+        merges.incrementAndGet();
+        boom.set(true);
+      }
+      return makeAppender(f);
+    };
+    Comparator<IntElement> comp = (a, b) -> {
+      if (boom.get()) {
+        throw new IllegalStateException("bad compare");
+      }
+      return a.getData().compareTo(b.getData());
+    };
+    ReplacementDiskSort<IntElement> kd =
+      new ReplacementDiskSort<>(ReplacementDiskSortTest::makeIter, counting, comp, true).setVerbose(null);
+    try {
+      kd.run(src, 100, 4, new File(folder, "dest"), folder);
+      Assert.fail();
+    } catch (IllegalStateException e) {
+      // thrown as is, not wrapped
+      assertThat(e.getMessage(), Matchers.is("bad compare"));
+    }
+    assertThat(merges.get(), Matchers.is(1));
+  }
+
+  @Test
+  public void testLoserTreeMergeComparisons() throws IOException {
+    File folder = tmp.newFolder();
+    Random r = new Random(0);
+    int fanIn = 64;
+    int perRun = 5000;
+    List<File> runs = new ArrayList<>();
+    for (int i = 0; i < fanIn; i++) {
+      int[] vals = r.ints(perRun).toArray();
+      Arrays.sort(vals);
+      File f = new File(folder, "run-" + i);
+      ReplacementDiskSort.ExternalAppender<IntElement> app = makeAppender(f);
+      for (int v : vals) {
+        app.append(new IntElement(v));
+      }
+      app.close();
+      runs.add(f);
+    }
+    AtomicLong compares = new AtomicLong();
+    Comparator<IntElement> counting = (a, b) -> {
+      compares.incrementAndGet();
+      return a.getData().compareTo(b.getData());
+    };
+    ReplacementDiskSort<IntElement> kd =
+      new ReplacementDiskSort<>(ReplacementDiskSortTest::makeIter, ReplacementDiskSortTest::makeAppender, counting,
+        false).setVerbose(null);
+    File dest = new File(folder, "dest");
+    long startNS = System.nanoTime();
+    kd.mergePass(1, runs, dest);
+    long tookNS = System.nanoTime() - startNS;
+    long total = (long) fanIn * perRun;
+    System.out.println(String.format("Loser tree %d way merge: %d elements, %.2f compares/element, %d elements/sec",
+      fanIn, total, compares.get() / (double) total, total * 1000000000L / Math.max(1, tookNS)));
+    // one compare per level of a 64 leaf tree, plus the build
+    assertThat(compares.get(), Matchers.lessThanOrEqualTo(total * 6 + fanIn));
+    verifyOrder(dest, (ff) -> makeIter(ff), Comparator.comparing(IntElement::getData));
+    assertThat(dest.length(), Matchers.is(runs.stream().mapToLong(File::length).sum()));
+  }
+
+  @Test
+  public void testBinaryLongRecords() throws IOException {
+    File folder = tmp.newFolder();
+    Random r = new Random(0);
+    int many = 200000;
+    int payload = 24;
+    // payload is a function of the key, so equal keys make identical records
+    File src = new File(folder, "source");
+    long[] keys = new long[many];
+    try (FileChannel ch = FileChannel.open(src.toPath(), CREATE_NEW, APPEND)) {
+      ByteBuffer b = ByteBuffer.allocate(many * (8 + payload));
+      for (int i = 0; i < many; i++) {
+        keys[i] = r.nextLong() % 50000;
+        b.putLong(keys[i]);
+        for (int j = 0; j < payload / 8; j++) {
+          b.putLong(~keys[i]);
+        }
+      }
+      b.flip();
+      while (b.hasRemaining()) {
+        ch.write(b);
+      }
+    }
+    Arrays.sort(keys);
+
+    ReplacementDiskSort.Binary<ReplacementDiskSort.LongElement> fmt =
+      ReplacementDiskSort.Binary.longsWithPayload(payload, 64 * 1024);
+    File viaElements = new File(folder, "viaElements");
+    long startMS = System.currentTimeMillis();
+    new ReplacementDiskSort<>(fmt.iterMaker(), fmt.appenderMaker(), fmt.comparator(), true).setVerbose(null)
+      .run(src, 10000, 10, viaElements, folder);
+    long elementMS = System.currentTimeMillis() - startMS;
+    ReplacementDiskSort.ExternalIterator<ReplacementDiskSort.LongElement> iter = fmt.iterMaker().make(viaElements);
+    for (long k : keys) {
+      ReplacementDiskSort.LongElement e = iter.next();
+      assertThat(e.getKey(), Matchers.is(k));
+      assertThat(ByteBuffer.wrap(e.getPayload()).getLong(payload - 8), Matchers.is(~k));
+    }
+    assertThat(iter.next(), Matchers.nullValue());
+
+    File viaPrimitive = new File(folder, "viaPrimitive");
+    startMS = System.currentTimeMillis();
+    ReplacementDiskSort.LongRecordSort lrs =
+      new ReplacementDiskSort.LongRecordSort(8 + payload).setBufferBytes(64 * 1024).setVerbose(null);
+    lrs.run(src, 10000, 10, viaPrimitive, folder);
+    long primitiveMS = System.currentTimeMillis() - startMS;
+    System.out.println("Long+payload records: elements " + elementMS + "ms, primitive " + primitiveMS + "ms");
+    assertThat(Files.readAllBytes(viaPrimitive.toPath()), Matchers.is(Files.readAllBytes(viaElements.toPath())));
+    // 20 runs, 10 at a time, then the 2 results
+    assertThat(lrs.getPassInfo().size(), Matchers.is(4));
+    assertThat(lrs.getPassInfo().get(3).getRunCounts().get(0), Matchers.is((long) many));
+    assertThat(folder.list().length, Matchers.is(3));
+  }
+
+  @Test
+  public void testBinaryLongsAndBytes() throws IOException {
+    File folder = tmp.newFolder();
+    Random r = new Random(1);
+    int many = 100000;
+    ReplacementDiskSort.Binary<ReplacementDiskSort.LongElement> longs = ReplacementDiskSort.Binary.longs(4096);
+    File src = new File(folder, "longs");
+    long[] keys = r.longs(many).toArray();
+    ReplacementDiskSort.ExternalAppender<ReplacementDiskSort.LongElement> app = longs.appenderMaker().make(src);
+    for (long k : keys) {
+      app.append(new ReplacementDiskSort.LongElement(k));
+    }
+    app.close();
+    assertThat(src.length(), Matchers.is(8L * many));
+    Arrays.sort(keys);
+
+    // odd run sizes, small fan in: several merge passes, a short last run
+    File dest = new File(folder, "dest");
+    new ReplacementDiskSort.LongRecordSort(8).setBufferBytes(1000).setVerbose(null).run(src, 3333, 3, dest, folder);
+    ByteBuffer sorted = ByteBuffer.wrap(Files.readAllBytes(dest.toPath()));
+    for (long k : keys) {
+      assertThat(sorted.getLong(), Matchers.is(k));
+    }
+    assertThat(sorted.hasRemaining(), Matchers.is(false));
+
+    ReplacementDiskSort.Binary<ReplacementDiskSort.BytesElement> bytes = ReplacementDiskSort.Binary.bytes(5, 1000);
+    File bsrc = new File(folder, "bytes");
+    List<byte[]> expected = new ArrayList<>();
+    ReplacementDiskSort.ExternalAppender<ReplacementDiskSort.BytesElement> bapp = bytes.appenderMaker().make(bsrc);
+    for (int i = 0; i < 20000; i++) {
+      byte[] rec = new byte[5];
+      r.nextBytes(rec);
+      expected.add(rec);
+      bapp.append(new ReplacementDiskSort.BytesElement(rec));
+    }
+    bapp.close();
+    expected.sort((b1, b2) -> bytes.comparator()
+      .compare(new ReplacementDiskSort.BytesElement(b1), new ReplacementDiskSort.BytesElement(b2)));
+    File bdest = new File(folder, "bdest");
+    new ReplacementDiskSort<>(bytes.iterMaker(), bytes.appenderMaker(), bytes.comparator(), true).setVerbose(null)
+      .run(bsrc, 1000, 10, bdest, folder);
+    ReplacementDiskSort.ExternalIterator<ReplacementDiskSort.BytesElement> biter = bytes.iterMaker().make(bdest);
+    for (byte[] rec : expected) {
+      assertThat(biter.next().getData(), Matchers.is(rec));
+    }
+    assertThat(biter.next(), Matchers.nullValue());
+
+    // a partial trailing record is an error, not silently dropped
+    File torn = new File(folder, "torn");
+    Files.write(torn.toPath(), new byte[12]);
+    try {
+      new ReplacementDiskSort.LongRecordSort(8).setVerbose(null).run(torn, 100, 10, new File(folder, "x"), folder);
+      Assert.fail();
+    } catch (IOException e) {
+      assertThat(e.getMessage(), Matchers.containsString("Truncated"));
+    }
+  }
+
   private static <E extends ReplacementDiskSort.Element> void verifyOrder(File f,
                                                                           ReplacementDiskSort.IterMaker<E> iterMaker,
                                                                           Comparator<E> comp) {